@@ -247,7 +247,7 @@ public class BitmaskDirectColorModel extends PackedColorModel {
 	    }
 	}
 
-	return (raster.getTransferType() != transferType);
+	return (raster.getTransferType() == transferType);
     }
 
     public boolean equals (Object obj) {
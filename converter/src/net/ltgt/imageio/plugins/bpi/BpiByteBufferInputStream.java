@@ -0,0 +1,93 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream reading from a ByteBuffer, without copying it.
+ *
+ * The stream reads the bytes between the position and the limit of the
+ * buffer at the time the stream is created; the buffer position is left
+ * untouched.
+ *
+ * @author  Thomas Broyer
+ */
+class BpiByteBufferInputStream extends ImageInputStreamImpl {
+    private final ByteBuffer buffer;
+
+    /** Creates a new instance of BpiByteBufferInputStream */
+    BpiByteBufferInputStream (ByteBuffer buffer) {
+	this.buffer = buffer.slice();
+    }
+
+    /**
+     * Returns the array backing the buffer, or <code>null</code> if the
+     * buffer is not backed by an accessible array.
+     * @see #arrayOffset
+     */
+    byte[] array() {
+	return (buffer.hasArray() && !buffer.isReadOnly()) ? buffer.array() : null;
+    }
+
+    /**
+     * Returns the index, in {@link #array}, of the first byte of the stream.
+     */
+    int arrayOffset() {
+	return buffer.arrayOffset();
+    }
+
+    public int read() throws IOException {
+	checkClosed();
+	bitOffset = 0;
+	if (streamPos >= buffer.limit()) {
+	    return -1;
+	}
+	return buffer.get((int) streamPos++) & 0xFF;
+    }
+
+    public int read (byte[] b, int off, int len) throws IOException {
+	checkClosed();
+	if ((off < 0) || (len < 0) || (off + len > b.length)) {
+	    throw new IndexOutOfBoundsException();
+	}
+	bitOffset = 0;
+	if (len == 0) {
+	    return 0;
+	}
+	if (streamPos >= buffer.limit()) {
+	    return -1;
+	}
+	len = (int) Math.min(len, buffer.limit() - streamPos);
+	ByteBuffer src = buffer.duplicate();
+	src.position((int) streamPos);
+	src.get(b, off, len);
+	streamPos += len;
+	return len;
+    }
+
+    public long length() {
+	return buffer.limit();
+    }
+}
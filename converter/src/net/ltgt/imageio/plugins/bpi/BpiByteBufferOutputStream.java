@@ -0,0 +1,119 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * ImageOutputStream writing into a ByteBuffer, without intermediate copy.
+ *
+ * The stream starts at the position of the buffer and cannot grow past
+ * its limit; the buffer position follows the end of the written data.
+ *
+ * @author  Thomas Broyer
+ */
+class BpiByteBufferOutputStream extends ImageOutputStreamImpl {
+    private final ByteBuffer target;
+    private final ByteBuffer buffer;
+    private final int base;
+    /** Number of bytes written so far. */
+    private long length = 0;
+
+    /** Creates a new instance of BpiByteBufferOutputStream */
+    BpiByteBufferOutputStream (ByteBuffer buffer) {
+	this.target = buffer;
+	this.base = buffer.position();
+	this.buffer = buffer.slice();
+    }
+
+    public int read() throws IOException {
+	checkClosed();
+	bitOffset = 0;
+	if (streamPos >= length) {
+	    return -1;
+	}
+	return buffer.get((int) streamPos++) & 0xFF;
+    }
+
+    public int read (byte[] b, int off, int len) throws IOException {
+	checkClosed();
+	if ((off < 0) || (len < 0) || (off + len > b.length)) {
+	    throw new IndexOutOfBoundsException();
+	}
+	bitOffset = 0;
+	if (len == 0) {
+	    return 0;
+	}
+	if (streamPos >= length) {
+	    return -1;
+	}
+	len = (int) Math.min(len, length - streamPos);
+	ByteBuffer src = buffer.duplicate();
+	src.position((int) streamPos);
+	src.get(b, off, len);
+	streamPos += len;
+	return len;
+    }
+
+    public void write (int b) throws IOException {
+	checkClosed();
+	flushBits();
+	ensureCapacity(1);
+	buffer.put((int) streamPos++, (byte) b);
+	written();
+    }
+
+    public void write (byte[] b, int off, int len) throws IOException {
+	checkClosed();
+	if ((off < 0) || (len < 0) || (off + len > b.length)) {
+	    throw new IndexOutOfBoundsException();
+	}
+	flushBits();
+	ensureCapacity(len);
+	ByteBuffer dst = buffer.duplicate();
+	dst.position((int) streamPos);
+	dst.put(b, off, len);
+	streamPos += len;
+	written();
+    }
+
+    public long length() {
+	return length;
+    }
+
+    private void ensureCapacity (int len) throws IIOException {
+	if (streamPos + len > buffer.limit()) {
+	    throw new IIOException("Output buffer is full ("
+		+ buffer.limit() + " bytes).");
+	}
+    }
+
+    private void written() {
+	if (streamPos > length) {
+	    length = streamPos;
+	    target.position(base + (int) length);
+	}
+    }
+}
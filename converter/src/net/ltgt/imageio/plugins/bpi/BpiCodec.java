@@ -28,6 +28,7 @@ import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -37,6 +38,7 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Iterator;
+import javax.imageio.IIOException;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.metadata.IIOInvalidTreeException;
 import javax.imageio.stream.ImageInputStream;
@@ -76,11 +78,21 @@ class BpiCodec {
     }
 
     static public BpiStreamMetadata readDescriptor (File file) throws IOException {
-	return readDescriptor(new FileInputStream(file));
+	InputStream in = new FileInputStream(file);
+	try {
+	    return readDescriptor(in);
+	} finally {
+	    in.close();
+	}
     }
 
     static public BpiStreamMetadata readDescriptor (URL url) throws IOException {
-	return readDescriptor(url.openStream());
+	InputStream in = url.openStream();
+	try {
+	    return readDescriptor(in);
+	} finally {
+	    in.close();
+	}
     }
 
     static public BpiStreamMetadata readDescriptor (InputStream in) throws IOException {
@@ -123,6 +135,96 @@ class BpiCodec {
 	}
     }
 
+    /* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+     * Container related                                                 *
+     * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * Reads a container header at the current stream position.
+     * If the stream does not start with a container header, the stream is
+     * left untouched and <code>null</code> is returned.
+     */
+    static public BpiContainerHeader readContainerHeader (ImageInputStream stream) throws IOException {
+	long start = stream.getStreamPosition();
+	int magic;
+	try {
+	    magic = stream.readInt();
+	} catch (EOFException eofe) {
+	    magic = ~BpiImageFormat.CONTAINER_MAGIC;
+	}
+	if (magic != BpiImageFormat.CONTAINER_MAGIC) {
+	    stream.seek(start);
+	    return null;
+	}
+
+	int version = stream.readUnsignedByte();
+	if (version != BpiImageFormat.CONTAINER_VERSION) {
+	    throw new IIOException("Unsupported container version: " + version);
+	}
+	int flags = stream.readUnsignedByte();
+	if (((flags & ~BpiImageFormat.CONTAINER_KNOWN_FLAGS) != 0)
+	    || (((flags & BpiImageFormat.CONTAINER_ALIGNED_ROWS) != 0)
+		&& ((flags & BpiImageFormat.CONTAINER_COMPRESSED_RASTERS) != 0))) {
+	    throw new IIOException("Unsupported container flags: " + flags);
+	}
+	int numBlocks = stream.readUnsignedShort();
+
+	BpiStreamMetadata descriptor = new BpiStreamMetadata();
+	for (int i = 0; i < numBlocks; i++) {
+	    int numColorModels = stream.readUnsignedShort();
+	    if (numColorModels == 0) {
+		descriptor.addColorModel();
+	    } else {
+		int[] colormodels = new int[numColorModels];
+		for (int j = 0; j < numColorModels; j++) {
+		    colormodels[j] = stream.readUnsignedShort();
+		}
+		try {
+		    descriptor.addRaster(colormodels);
+		} catch (RuntimeException re) {
+		    throw new IIOException("Invalid block table in container header.", re);
+		}
+	    }
+	}
+
+	BpiContainerHeader header = new BpiContainerHeader(descriptor);
+	header.flags = flags;
+	for (int i = 0; i < numBlocks; i++) {
+	    header.setBlockOffset(i, stream.readLong());
+	}
+	return header;
+    }
+
+    static public void writeContainerHeader (ImageOutputStream stream, BpiContainerHeader header) throws IOException {
+	BpiStreamMetadata descriptor = header.descriptor;
+	int numBlocks = descriptor.getNumBlocks();
+	if (numBlocks > BpiImageFormat.CONTAINER_MAX_BLOCKS) {
+	    throw new IllegalArgumentException("Too many blocks for a container: " + numBlocks);
+	}
+	if (descriptor.getNumColorModels() > BpiImageFormat.CONTAINER_MAX_COLOR_MODELS) {
+	    throw new IllegalArgumentException("Too many color models for a container.");
+	}
+
+	stream.writeInt(BpiImageFormat.CONTAINER_MAGIC);
+	stream.writeByte(BpiImageFormat.CONTAINER_VERSION);
+	stream.writeByte(header.flags);
+	stream.writeShort(numBlocks);
+	for (int i = 0; i < numBlocks; i++) {
+	    if (descriptor.isColorModel(i)) {
+		stream.writeShort(0);
+	    } else {
+		int[] colormodels = descriptor.getRasterColorModels(descriptor.getRaster(i));
+		stream.writeShort(colormodels.length);
+		for (int j = 0; j < colormodels.length; j++) {
+		    stream.writeShort(colormodels[j]);
+		}
+	    }
+	}
+	for (int i = 0; i < numBlocks; i++) {
+	    stream.writeLong(header.getBlockOffset(i));
+	}
+    }
+
     /* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
      * Compatibility checks                                              *
      * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
@@ -347,7 +449,9 @@ class BpiCodec {
 
     static public void writeColorModel (ImageOutputStream stream, BpiImageMetadata imageMetadata) throws IOException {
 	stream.writeBits(imageMetadata.depth, BpiImageFormat.DEPTH_SIZE);
-	stream.writeBit(imageMetadata.palette == null ? 0 : 1);
+	if (imageMetadata.depth >= BpiImageFormat.MIN_DEPTH_TO_USE_PALETTE) {
+	    stream.writeBit(imageMetadata.palette == null ? 0 : 1);
+	}
 	ColorModel cm = null;
 	if (imageMetadata.hasTransparentColor || (imageMetadata.palette != null)) {
 	    cm = new BpiImageMetadata(imageMetadata.depth).createCompatibleColorModel();
@@ -361,10 +465,11 @@ class BpiCodec {
 	}
 	if (imageMetadata.palette != null) {
 	    int[] palette = imageMetadata.palette;
+	    // the stored size counts the transparent entry, which is not stored
 	    int paletteSize = palette.length;
+	    stream.writeBits(paletteSize - BpiImageFormat.MIN_PALETTE_LENGTH, imageMetadata.bitsPerColor - 1);
 	    if (imageMetadata.hasTransparentColor)
 		paletteSize--;
-	    stream.writeBits(paletteSize, imageMetadata.bitsPerColor - 1);
 	    for (int i = 0; i < paletteSize; i++) {
 		int color = getDataElement(cm, palette[i]);
 		stream.writeBits(color, imageMetadata.bitsPerColor);
@@ -372,6 +477,29 @@ class BpiCodec {
 	}
     }
 
+    /**
+     * Returns the size, in bits, of an encoded color model.
+     */
+    static public long getEncodedColorModelBits (BpiImageMetadata imageMetadata) {
+	long bits = BpiImageFormat.DEPTH_SIZE;
+	if (imageMetadata.depth >= BpiImageFormat.MIN_DEPTH_TO_USE_PALETTE) {
+	    bits++;
+	}
+	if (!imageMetadata.hasAlpha) {
+	    bits++;
+	    if (imageMetadata.hasTransparentColor && (imageMetadata.palette == null)) {
+		bits += imageMetadata.bitsPerColor;
+	    }
+	}
+	if (imageMetadata.palette != null) {
+	    int paletteSize = imageMetadata.palette.length;
+	    if (imageMetadata.hasTransparentColor)
+		paletteSize--;
+	    bits += imageMetadata.bitsPerColor - 1 + (long) paletteSize * imageMetadata.bitsPerColor;
+	}
+	return bits;
+    }
+
     /* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
      * Raster related                                                    *
      * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
@@ -394,20 +522,67 @@ class BpiCodec {
 	stream.writeBits(height - BpiImageFormat.MIN_HEIGHT, BpiImageFormat.HEIGHT_SIZE);
     }
 
+    /**
+     * Returns the size, in bits, of an encoded raster.
+     */
+    static public long getEncodedRasterBits (int width, int height, int pixel_bits) {
+	return BpiImageFormat.WIDTH_SIZE + BpiImageFormat.HEIGHT_SIZE + (long) width * height * pixel_bits;
+    }
+
+    /**
+     * Returns the size, in bits, of an encoded raster whose pixels and
+     * rows start on byte boundaries, when the raster itself starts on one.
+     */
+    static public long getAlignedRasterBits (int width, int height, int pixel_bits) {
+	return alignBits(BpiImageFormat.WIDTH_SIZE + BpiImageFormat.HEIGHT_SIZE)
+	    + height * alignBits((long) width * pixel_bits);
+    }
+
+    /**
+     * Rounds a number of bits up to a whole number of bytes.
+     */
+    static public long alignBits (long bits) {
+	return (bits + 7) & ~7L;
+    }
+
+    /**
+     * Pads the stream with zero bits up to the next byte boundary.
+     */
+    static public void alignToByte (ImageOutputStream stream) throws IOException {
+	int bitOffset = stream.getBitOffset();
+	if (bitOffset != 0) {
+	    stream.writeBits(0, 8 - bitOffset);
+	}
+    }
+
     static public DataBuffer readRaster (ImageInputStream stream, int pixel_bits) throws IOException {
 	Dimension size = readRasterSize(stream);
 	return readRaster(stream, size, pixel_bits);
     }
 
     static public DataBuffer readRaster (ImageInputStream stream, Dimension rasterSize, int pixel_bits) throws IOException {
-	DataBuffer db;
+	return readRaster(stream, rasterSize, pixel_bits, null);
+    }
+
+    /**
+     * Reads the pixels of a raster into a DataBuffer.
+     *
+     * @param db the DataBuffer receiving the pixels, reused if it can hold
+     *	all of them, or <code>null</code>.
+     * @return <code>db</code>, or a new DataBuffer if it was
+     *	<code>null</code> or too small.
+     */
+    static public DataBuffer readRaster (ImageInputStream stream, Dimension rasterSize, int pixel_bits, DataBuffer db) throws IOException {
 	int numberOfElements = rasterSize.width * rasterSize.height;
-	if (pixel_bits > 16) {
-	    db = new DataBufferInt(numberOfElements);
-	} else if (pixel_bits > 8) {
-	    db = new DataBufferUShort(numberOfElements);
-	} else {
-	    db = new DataBufferByte(numberOfElements);
+	if ((db == null) || (db.getSize() < numberOfElements)
+	    || (DataBuffer.getDataTypeSize(db.getDataType()) < pixel_bits)) {
+	    if (pixel_bits > 16) {
+		db = new DataBufferInt(numberOfElements);
+	    } else if (pixel_bits > 8) {
+		db = new DataBufferUShort(numberOfElements);
+	    } else {
+		db = new DataBufferByte(numberOfElements);
+	    }
 	}
 	for (int i = 0; i < numberOfElements; i++) {
 	    int pixel = (int) stream.readBits(pixel_bits);
@@ -416,6 +591,608 @@ class BpiCodec {
 	return db;
     }
 
+    /**
+     * Unpacks bit-packed pixels from a byte array.
+     *
+     * @param src the packed pixels.
+     * @param bitOffset the offset, in bits, of the first pixel in <code>src[0]</code>.
+     * @param pixel_bits the number of bits per pixel, at most 24.
+     * @param dst the array receiving one pixel per element.
+     * @param offset the index of the first pixel in <code>dst</code>.
+     * @param count the number of pixels to unpack.
+     */
+    static public void unpackPixels (byte[] src, int bitOffset, int pixel_bits, int[] dst, int offset, int count) {
+	unpackPixels(src, 0, bitOffset, pixel_bits, dst, offset, count);
+    }
+
+    /**
+     * Unpacks bit-packed pixels from a byte array.
+     *
+     * @param src the packed pixels.
+     * @param srcPos the index of the byte holding the first pixel.
+     * @param bitOffset the offset, in bits, of the first pixel in <code>src[srcPos]</code>.
+     * @param pixel_bits the number of bits per pixel, at most 24.
+     * @param dst the array receiving one pixel per element.
+     * @param offset the index of the first pixel in <code>dst</code>.
+     * @param count the number of pixels to unpack.
+     */
+    static public void unpackPixels (byte[] src, int srcPos, int bitOffset, int pixel_bits, int[] dst, int offset, int count) {
+	if (count <= 0)
+	    return;
+	if ((pixel_bits == 8) && (bitOffset == 0)) {
+	    // byte-aligned bytes, as found in aligned rows
+	    for (int i = offset, end = offset + count; i < end; i++) {
+		dst[i] = src[srcPos++] & 0xFF;
+	    }
+	    return;
+	}
+	int mask = (1 << pixel_bits) - 1;
+	int pos = srcPos + 1;
+	long bits = src[srcPos] & (0xFF >>> bitOffset);
+	int numBits = 8 - bitOffset;
+	for (int i = offset, end = offset + count; i < end; i++) {
+	    while (numBits < pixel_bits) {
+		bits = (bits << 8) | (src[pos++] & 0xFF);
+		numBits += 8;
+	    }
+	    numBits -= pixel_bits;
+	    dst[i] = (int) (bits >>> numBits) & mask;
+	}
+    }
+
+    /**
+     * Returns the number of pixels, starting at <code>start</code>, equal to
+     * the first one, up to <code>MAX_RUN_LENGTH</code>.
+     */
+    static private int getRepeatLength (int[] pixels, int start, int end) {
+	end = Math.min(end, start + BpiImageFormat.MAX_RUN_LENGTH);
+	int i = start + 1;
+	while ((i < end) && (pixels[i] == pixels[start])) {
+	    i++;
+	}
+	return i - start;
+    }
+
+    /**
+     * Returns the shortest run worth a repeat run, that is one costing less
+     * than its pixels in a literal run, including the literal run header it
+     * may split.
+     */
+    static private int getMinRepeatLength (int pixel_bits) {
+	int header = 1 + BpiImageFormat.RUN_LENGTH_SIZE;
+	return Math.max(2, 2 * header / pixel_bits + 2);
+    }
+
+    /**
+     * Run-length encodes pixels, or only computes their encoded size.
+     *
+     * @param stream the stream to write to, or <code>null</code> to only
+     *	compute the size.
+     * @return the size, in bits, of the encoded pixels.
+     */
+    static private long encodeRunLength (ImageOutputStream stream, int[] pixels, int count, int pixel_bits)
+	throws IOException {
+	int minRepeat = getMinRepeatLength(pixel_bits);
+	long bits = 0;
+	int i = 0;
+	while (i < count) {
+	    int run = getRepeatLength(pixels, i, count);
+	    if (run >= minRepeat) {
+		if (stream != null) {
+		    stream.writeBit(1);
+		    stream.writeBits(run - BpiImageFormat.MIN_RUN_LENGTH, BpiImageFormat.RUN_LENGTH_SIZE);
+		    stream.writeBits(pixels[i], pixel_bits);
+		}
+		bits += 1 + BpiImageFormat.RUN_LENGTH_SIZE + pixel_bits;
+		i += run;
+		continue;
+	    }
+	    // literal run, up to the next run worth repeating
+	    int start = i;
+	    do {
+		i++;
+	    } while ((i < count) && (i - start < BpiImageFormat.MAX_RUN_LENGTH)
+		&& (getRepeatLength(pixels, i, count) < minRepeat));
+	    int length = i - start;
+	    if (stream != null) {
+		stream.writeBit(0);
+		stream.writeBits(length - BpiImageFormat.MIN_RUN_LENGTH, BpiImageFormat.RUN_LENGTH_SIZE);
+		for (int j = start; j < i; j++) {
+		    stream.writeBits(pixels[j], pixel_bits);
+		}
+	    }
+	    bits += 1 + BpiImageFormat.RUN_LENGTH_SIZE + (long) length * pixel_bits;
+	}
+	return bits;
+    }
+
+    /**
+     * Returns the size, in bits, of run-length encoded pixels.
+     */
+    static public long getRunLengthBits (int[] pixels, int count, int pixel_bits) {
+	try {
+	    return encodeRunLength(null, pixels, count, pixel_bits);
+	} catch (IOException ioe) {
+	    // nothing is written
+	    throw new InternalError(ioe.toString());
+	}
+    }
+
+    /**
+     * Writes run-length encoded pixels.
+     *
+     * @param pixels the pixels, one per element.
+     * @param count the number of pixels.
+     * @param pixel_bits the number of bits per pixel.
+     */
+    static public void writeRunLength (ImageOutputStream stream, int[] pixels, int count, int pixel_bits)
+	throws IOException {
+	encodeRunLength(stream, pixels, count, pixel_bits);
+    }
+
+    /**
+     * Reads run-length encoded pixels.
+     *
+     * @param pixels the array receiving one pixel per element.
+     * @param count the number of pixels.
+     * @param pixel_bits the number of bits per pixel.
+     * @throws IIOException if a run goes past the last pixel.
+     */
+    static public void readRunLength (ImageInputStream stream, int[] pixels, int count, int pixel_bits)
+	throws IOException {
+	int i = 0;
+	while (i < count) {
+	    boolean repeat = (stream.readBit() != 0);
+	    int length = (int) stream.readBits(BpiImageFormat.RUN_LENGTH_SIZE) + BpiImageFormat.MIN_RUN_LENGTH;
+	    if (i + length > count) {
+		throw new IIOException("Run goes past the end of the raster.");
+	    }
+	    if (repeat) {
+		int pixel = (int) stream.readBits(pixel_bits);
+		for (int end = i + length; i < end; i++) {
+		    pixels[i] = pixel;
+		}
+	    } else {
+		for (int end = i + length; i < end; i++) {
+		    pixels[i] = (int) stream.readBits(pixel_bits);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Returns the sizes of the samples of the pixels of an image, in the
+     * order they are stored in a pixel, most significant first.
+     */
+    static public int[] getStoredSampleSizes (BpiImageMetadata imageMetadata) {
+	if (imageMetadata.palette != null) {
+	    return new int[] { imageMetadata.bitsPerPixel };
+	}
+	return BpiImageFormat.BITS_PER_SAMPLE[imageMetadata.depth];
+    }
+
+    /**
+     * Returns the sizes of the samples of the pixels of a raster, in the
+     * order they are stored in a pixel: alpha, when there is one, comes
+     * first.
+     *
+     * @param sampleSize the sizes of the bands of the raster.
+     */
+    static public int[] getStoredSampleSizes (int[] sampleSize) {
+	int numBands = sampleSize.length;
+	if ((numBands % 2) != 0) {
+	    return sampleSize;
+	}
+	int[] sizes = new int[numBands];
+	sizes[0] = sampleSize[numBands - 1];
+	System.arraycopy(sampleSize, 0, sizes, 1, numBands - 1);
+	return sizes;
+    }
+
+    static private int predict (int filter, int left, int up, int upLeft) {
+	switch (filter) {
+	    case BpiImageFormat.FILTER_LEFT:
+		return left;
+	    case BpiImageFormat.FILTER_UP:
+		return up;
+	    case BpiImageFormat.FILTER_AVERAGE:
+		return (left + up) >>> 1;
+	    case BpiImageFormat.FILTER_PAETH:
+		int p = left + up - upLeft;
+		int pLeft = Math.abs(p - left);
+		int pUp = Math.abs(p - up);
+		int pUpLeft = Math.abs(p - upLeft);
+		if ((pLeft <= pUp) && (pLeft <= pUpLeft)) {
+		    return left;
+		}
+		return (pUp <= pUpLeft) ? up : upLeft;
+	    default:
+		return 0;
+	}
+    }
+
+    /**
+     * Filters a row of pixels into the residuals of their samples, one
+     * sample after the other.
+     *
+     * @return the sum of the magnitudes of the residuals, used to pick the
+     *	filter of the row.
+     */
+    static private long filterRow (int[] pixels, int width, int y, int filter,
+	int[] shift, int[] mask, int[] residuals) {
+	int numBands = shift.length;
+	long cost = 0;
+	int i = y * width;
+	for (int x = 0, r = 0; x < width; x++, i++) {
+	    for (int b = 0; b < numBands; b++, r++) {
+		int left = (x > 0) ? (pixels[i - 1] >>> shift[b]) & mask[b] : 0;
+		int up = (y > 0) ? (pixels[i - width] >>> shift[b]) & mask[b] : 0;
+		int upLeft = ((x > 0) && (y > 0)) ? (pixels[i - width - 1] >>> shift[b]) & mask[b] : 0;
+		int residual = (((pixels[i] >>> shift[b]) & mask[b]) - predict(filter, left, up, upLeft)) & mask[b];
+		residuals[r] = residual;
+		cost += Math.min(residual, mask[b] + 1 - residual);
+	    }
+	}
+	return cost;
+    }
+
+    /**
+     * Returns the probabilities coding the residuals of each sample: a tree
+     * for each part, of at most <code>MAX_CODED_SAMPLE_SIZE</code> bits, of
+     * the sample.
+     */
+    static private short[][][] newSampleProbabilities (int[] sampleSize) {
+	short[][][] probs = new short[sampleSize.length][][];
+	for (int b = 0; b < sampleSize.length; b++) {
+	    int numParts = (sampleSize[b] + BpiImageFormat.MAX_CODED_SAMPLE_SIZE - 1)
+		/ BpiImageFormat.MAX_CODED_SAMPLE_SIZE;
+	    probs[b] = new short[numParts][];
+	    for (int i = 0; i < numParts; i++) {
+		probs[b][i] = new short[1 << getPartSize(sampleSize[b], i)];
+		BpiRangeEncoder.initProbabilities(probs[b][i]);
+	    }
+	}
+	return probs;
+    }
+
+    /** Returns the size of a part of a sample, the first one being the shortest. */
+    static private int getPartSize (int sampleSize, int part) {
+	if (part > 0) {
+	    return BpiImageFormat.MAX_CODED_SAMPLE_SIZE;
+	}
+	int rest = sampleSize % BpiImageFormat.MAX_CODED_SAMPLE_SIZE;
+	return (rest == 0) ? BpiImageFormat.MAX_CODED_SAMPLE_SIZE : rest;
+    }
+
+    /**
+     * Predictively codes pixels, or only computes their encoded size.
+     *
+     * @param stream the stream to write to, or <code>null</code> to only
+     *	compute the size.
+     * @return the size, in bits, of the encoded pixels.
+     */
+    static private long encodePredictive (ImageOutputStream stream, int[] pixels, int width, int height,
+	int[] sampleSize) throws IOException {
+	int numBands = sampleSize.length;
+	int[] shift = new int[numBands];
+	int[] mask = new int[numBands];
+	for (int b = numBands - 1, s = 0; b >= 0; s += sampleSize[b--]) {
+	    shift[b] = s;
+	    mask[b] = (1 << sampleSize[b]) - 1;
+	}
+	short[] filterProbs = new short[1 << BpiImageFormat.FILTER_SIZE];
+	BpiRangeEncoder.initProbabilities(filterProbs);
+	short[][][] sampleProbs = newSampleProbabilities(sampleSize);
+	int[] residuals = new int[width * numBands];
+	int[] bestResiduals = new int[width * numBands];
+
+	BpiRangeEncoder encoder = new BpiRangeEncoder(stream);
+	for (int y = 0; y < height; y++) {
+	    // pick the filter leaving the smallest residuals
+	    int bestFilter = -1;
+	    long bestCost = Long.MAX_VALUE;
+	    for (int filter = 0; filter < BpiImageFormat.NUM_FILTERS; filter++) {
+		long cost = filterRow(pixels, width, y, filter, shift, mask, residuals);
+		if (cost < bestCost) {
+		    bestFilter = filter;
+		    bestCost = cost;
+		    int[] tmp = bestResiduals;
+		    bestResiduals = residuals;
+		    residuals = tmp;
+		}
+	    }
+	    encoder.encodeTree(filterProbs, BpiImageFormat.FILTER_SIZE, bestFilter);
+	    for (int i = 0, b = 0; i < bestResiduals.length; i++) {
+		short[][] probs = sampleProbs[b];
+		for (int part = 0, rest = sampleSize[b]; part < probs.length; part++) {
+		    int partSize = getPartSize(sampleSize[b], part);
+		    rest -= partSize;
+		    encoder.encodeTree(probs[part], partSize, (bestResiduals[i] >>> rest) & ((1 << partSize) - 1));
+		}
+		b = (b + 1) % numBands;
+	    }
+	}
+	encoder.flush();
+	return encoder.getNumBytes() * 8;
+    }
+
+    /**
+     * Reads predictively coded pixels.
+     *
+     * @param pixels the array receiving one pixel per element.
+     * @param width the width of the raster.
+     * @param height the height of the raster.
+     * @param sampleSize the sizes of the samples, as stored in a pixel.
+     * @throws IIOException if a row has an unknown filter.
+     */
+    static public void readPredictive (ImageInputStream stream, int[] pixels, int width, int height,
+	int[] sampleSize) throws IOException {
+	int numBands = sampleSize.length;
+	int[] shift = new int[numBands];
+	int[] mask = new int[numBands];
+	for (int b = numBands - 1, s = 0; b >= 0; s += sampleSize[b--]) {
+	    shift[b] = s;
+	    mask[b] = (1 << sampleSize[b]) - 1;
+	}
+	short[] filterProbs = new short[1 << BpiImageFormat.FILTER_SIZE];
+	BpiRangeEncoder.initProbabilities(filterProbs);
+	short[][][] sampleProbs = newSampleProbabilities(sampleSize);
+
+	BpiRangeDecoder decoder = new BpiRangeDecoder(stream);
+	for (int y = 0, i = 0; y < height; y++) {
+	    int filter = decoder.decodeTree(filterProbs, BpiImageFormat.FILTER_SIZE);
+	    if (filter >= BpiImageFormat.NUM_FILTERS) {
+		throw new IIOException("Unknown row filter: " + filter);
+	    }
+	    for (int x = 0; x < width; x++, i++) {
+		int pixel = 0;
+		for (int b = 0; b < numBands; b++) {
+		    short[][] probs = sampleProbs[b];
+		    int residual = 0;
+		    for (int part = 0; part < probs.length; part++) {
+			int partSize = getPartSize(sampleSize[b], part);
+			residual = (residual << partSize) | decoder.decodeTree(probs[part], partSize);
+		    }
+		    int left = (x > 0) ? (pixels[i - 1] >>> shift[b]) & mask[b] : 0;
+		    int up = (y > 0) ? (pixels[i - width] >>> shift[b]) & mask[b] : 0;
+		    int upLeft = ((x > 0) && (y > 0)) ? (pixels[i - width - 1] >>> shift[b]) & mask[b] : 0;
+		    int sample = (residual + predict(filter, left, up, upLeft)) & mask[b];
+		    pixel |= sample << shift[b];
+		}
+		pixels[i] = pixel;
+	    }
+	}
+    }
+
+    /**
+     * Encodes pixels with the given method, or only computes their encoded
+     * size.
+     *
+     * @param stream the stream to write to, or <code>null</code> to only
+     *	compute the size.
+     * @return the size, in bits, of the encoded pixels.
+     */
+    static private long encodePixels (ImageOutputStream stream, int[] pixels, int width, int height,
+	int[] sampleSize, int compression) throws IOException {
+	int count = width * height;
+	int pixel_bits = 0;
+	for (int b = 0; b < sampleSize.length; b++) {
+	    pixel_bits += sampleSize[b];
+	}
+	switch (compression) {
+	    case BpiImageFormat.COMPRESSION_RLE:
+		return encodeRunLength(stream, pixels, count, pixel_bits);
+	    case BpiImageFormat.COMPRESSION_PREDICTIVE:
+		return encodePredictive(stream, pixels, width, height, sampleSize);
+	    default:
+		if (stream != null) {
+		    for (int i = 0; i < count; i++) {
+			stream.writeBits(pixels[i], pixel_bits);
+		    }
+		}
+		return (long) count * pixel_bits;
+	}
+    }
+
+    static private long getEncodedPixelsBits (int[] pixels, int width, int height, int[] sampleSize,
+	int compression) {
+	try {
+	    return encodePixels(null, pixels, width, height, sampleSize, compression);
+	} catch (IOException ioe) {
+	    // nothing is written
+	    throw new InternalError(ioe.toString());
+	}
+    }
+
+    /**
+     * Returns the method, among no compression and those up to the given
+     * one, making the pixels of a raster the smallest.
+     */
+    static private int chooseCompression (int[] pixels, int width, int height, int[] sampleSize,
+	int compression) {
+	int best = BpiImageFormat.COMPRESSION_NONE;
+	long bestBits = getEncodedPixelsBits(pixels, width, height, sampleSize, best);
+	for (int method = BpiImageFormat.COMPRESSION_RLE; method <= compression; method++) {
+	    long bits = getEncodedPixelsBits(pixels, width, height, sampleSize, method);
+	    if (bits < bestBits) {
+		best = method;
+		bestBits = bits;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * Returns the size, in bits, of the pixels of a raster as written by
+     * {@link #writeCompressedPixels}, compression method included.
+     */
+    static public long getCompressedPixelsBits (int[] pixels, int width, int height, int[] sampleSize,
+	int compression) {
+	compression = chooseCompression(pixels, width, height, sampleSize, compression);
+	return BpiImageFormat.RASTER_COMPRESSION_SIZE
+	    + getEncodedPixelsBits(pixels, width, height, sampleSize, compression);
+    }
+
+    /**
+     * Writes the pixels of a raster of a container with compressed rasters:
+     * the compression method, followed by the pixels, compressed with the
+     * given method, or a simpler one, if it makes them smaller.
+     *
+     * @param pixels the pixels, one per element.
+     * @param width the width of the raster.
+     * @param height the height of the raster.
+     * @param sampleSize the sizes of the samples, as stored in a pixel.
+     * @param compression the most elaborate compression method to try.
+     */
+    static public void writeCompressedPixels (ImageOutputStream stream, int[] pixels, int width, int height,
+	int[] sampleSize, int compression) throws IOException {
+	compression = chooseCompression(pixels, width, height, sampleSize, compression);
+	stream.writeBits(compression, BpiImageFormat.RASTER_COMPRESSION_SIZE);
+	encodePixels(stream, pixels, width, height, sampleSize, compression);
+    }
+
+    /**
+     * Returns the pixels of a tile of a raster, one row after the other.
+     */
+    static private int[] getTilePixels (int[] pixels, int width, int x, int y, int tileWidth, int tileHeight) {
+	int[] tile = new int[tileWidth * tileHeight];
+	for (int row = 0; row < tileHeight; row++) {
+	    System.arraycopy(pixels, (y + row) * width + x, tile, row * tileWidth, tileWidth);
+	}
+	return tile;
+    }
+
+    /**
+     * Returns the size, in bits, of a tile, or of an untiled raster, as
+     * written by {@link #writeTile}.
+     */
+    static private long getTileBits (int[] pixels, int width, int height, int[] sampleSize,
+	int flags, int compression) {
+	if ((flags & BpiImageFormat.CONTAINER_COMPRESSED_RASTERS) != 0) {
+	    return getCompressedPixelsBits(pixels, width, height, sampleSize, compression);
+	}
+	int pixel_bits = 0;
+	for (int b = 0; b < sampleSize.length; b++) {
+	    pixel_bits += sampleSize[b];
+	}
+	if ((flags & BpiImageFormat.CONTAINER_ALIGNED_ROWS) != 0) {
+	    return height * alignBits((long) width * pixel_bits);
+	}
+	return (long) width * height * pixel_bits;
+    }
+
+    /**
+     * Writes the pixels of a tile, compressed or with aligned rows as told
+     * by the container flags.
+     */
+    static private void writeTile (ImageOutputStream stream, int[] pixels, int width, int height,
+	int[] sampleSize, int flags, int compression) throws IOException {
+	if ((flags & BpiImageFormat.CONTAINER_COMPRESSED_RASTERS) != 0) {
+	    writeCompressedPixels(stream, pixels, width, height, sampleSize, compression);
+	    return;
+	}
+	int pixel_bits = 0;
+	for (int b = 0; b < sampleSize.length; b++) {
+	    pixel_bits += sampleSize[b];
+	}
+	boolean alignRows = ((flags & BpiImageFormat.CONTAINER_ALIGNED_ROWS) != 0);
+	for (int y = 0, i = 0; y < height; y++) {
+	    if (alignRows) {
+		alignToByte(stream);
+	    }
+	    for (int x = 0; x < width; x++, i++) {
+		stream.writeBits(pixels[i], pixel_bits);
+	    }
+	}
+    }
+
+    /**
+     * Computes the size, in bits, of each tile of a raster, as written by
+     * {@link #writeTiledPixels}.
+     */
+    static private long[] getTilesBits (int[] pixels, int width, int height, int tileWidth, int tileHeight,
+	int[] sampleSize, int flags, int compression) {
+	int numXTiles = (width + tileWidth - 1) / tileWidth;
+	int numYTiles = (height + tileHeight - 1) / tileHeight;
+	long[] bits = new long[numXTiles * numYTiles];
+	for (int ty = 0, i = 0; ty < numYTiles; ty++) {
+	    for (int tx = 0; tx < numXTiles; tx++, i++) {
+		int x = tx * tileWidth;
+		int y = ty * tileHeight;
+		int w = Math.min(tileWidth, width - x);
+		int h = Math.min(tileHeight, height - y);
+		bits[i] = getTileBits(getTilePixels(pixels, width, x, y, w, h), w, h, sampleSize, flags, compression);
+	    }
+	}
+	return bits;
+    }
+
+    /**
+     * Returns the size, in bits, of the tile size and offsets of a tiled
+     * raster, followed by the padding aligning the first tile if needed.
+     * Blocks start on a byte boundary when rows are aligned, so the padding
+     * only depends on the raster size written before the tile size.
+     */
+    static private long getTileTableBits (int numTiles, int flags) {
+	long bits = 2 * (BpiImageFormat.WIDTH_SIZE + BpiImageFormat.HEIGHT_SIZE)
+	    + (long) numTiles * BpiImageFormat.TILE_OFFSET_SIZE;
+	if ((flags & BpiImageFormat.CONTAINER_ALIGNED_ROWS) != 0) {
+	    bits = alignBits(bits);
+	}
+	return bits - (BpiImageFormat.WIDTH_SIZE + BpiImageFormat.HEIGHT_SIZE);
+    }
+
+    /**
+     * Returns the size, in bits, of the pixels of a tiled raster as written
+     * by {@link #writeTiledPixels}, tile size and offsets included.
+     */
+    static public long getTiledPixelsBits (int[] pixels, int width, int height, int tileWidth, int tileHeight,
+	int[] sampleSize, int flags, int compression) {
+	long[] tileBits = getTilesBits(pixels, width, height, tileWidth, tileHeight, sampleSize, flags, compression);
+	long bits = getTileTableBits(tileBits.length, flags);
+	for (int i = 0; i < tileBits.length; i++) {
+	    bits += tileBits[i];
+	}
+	return bits;
+    }
+
+    /**
+     * Writes the pixels of a raster of a container with tiled rasters: the
+     * tile size and the offset of each tile, followed by the tiles.
+     *
+     * @param pixels the pixels, one per element.
+     * @param width the width of the raster.
+     * @param height the height of the raster.
+     * @param tileWidth the width of the tiles, at most the raster width.
+     * @param tileHeight the height of the tiles, at most the raster height.
+     * @param sampleSize the sizes of the samples, as stored in a pixel.
+     * @param flags the flags of the container.
+     * @param compression the most elaborate compression method to try, in
+     *	containers with compressed rasters.
+     */
+    static public void writeTiledPixels (ImageOutputStream stream, int[] pixels, int width, int height,
+	int tileWidth, int tileHeight, int[] sampleSize, int flags, int compression) throws IOException {
+	// tiles are sized first, so that their offsets can be written before them
+	long[] tileBits = getTilesBits(pixels, width, height, tileWidth, tileHeight, sampleSize, flags, compression);
+	writeRasterSize(stream, tileWidth, tileHeight);
+	long offset = 0;
+	for (int i = 0; i < tileBits.length; i++) {
+	    stream.writeBits(offset, BpiImageFormat.TILE_OFFSET_SIZE);
+	    offset += tileBits[i];
+	}
+	if ((flags & BpiImageFormat.CONTAINER_ALIGNED_ROWS) != 0) {
+	    alignToByte(stream);
+	}
+	int numXTiles = (width + tileWidth - 1) / tileWidth;
+	for (int i = 0; i < tileBits.length; i++) {
+	    int x = (i % numXTiles) * tileWidth;
+	    int y = (i / numXTiles) * tileHeight;
+	    int w = Math.min(tileWidth, width - x);
+	    int h = Math.min(tileHeight, height - y);
+	    writeTile(stream, getTilePixels(pixels, width, x, y, w, h), w, h, sampleSize, flags, compression);
+	}
+    }
+
     static public void writeRaster (ImageOutputStream stream, int pixel_bits, DataBuffer raster) throws IOException {
 	for (int i = 0; i < raster.getSize(); i++) {
 	    int pixel = raster.getElem(i);
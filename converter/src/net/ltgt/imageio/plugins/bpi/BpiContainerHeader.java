@@ -0,0 +1,69 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.ltgt.imageio.plugins.bpi;
+
+/**
+ * Header of a self-describing BPI collection (container).
+ *
+ * The header holds the same block table as the external descriptor,
+ * plus the offset (in bits, from the end of the header) of each block
+ * so that any image can be reached without scanning the stream.
+ *
+ * @author  Thomas Broyer
+ */
+class BpiContainerHeader {
+    /** Container flags, see <code>BpiImageFormat.CONTAINER_*</code>. */
+    int flags = 0;
+    /** Block table. */
+    BpiStreamMetadata descriptor;
+    /** Offset of each block, in bits, from the start of the block data. */
+    long[] blockOffsets;
+
+    /** Creates a new instance of BpiContainerHeader */
+    BpiContainerHeader (BpiStreamMetadata descriptor) {
+	this.descriptor = descriptor;
+	this.blockOffsets = new long[descriptor.getNumBlocks()];
+    }
+
+    /**
+     * Returns the size of the header, in bytes.
+     * It only depends on the block table.
+     */
+    int getSize() {
+	int size = BpiImageFormat.CONTAINER_FIXED_HEADER_SIZE;
+	for (int i = 0; i < descriptor.getNumBlocks(); i++) {
+	    // block kind (or number of color models), then bit offset
+	    size += 2 + 8;
+	    if (descriptor.isRaster(i)) {
+		size += 2 * descriptor.getNumColorModels(descriptor.getRaster(i));
+	    }
+	}
+	return size;
+    }
+
+    long getBlockOffset (int blockIndex) {
+	return blockOffsets[blockIndex];
+    }
+
+    void setBlockOffset (int blockIndex, long bitOffset) {
+	blockOffsets[blockIndex] = bitOffset;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of parsed descriptor files.
+ *
+ * Descriptors are keyed by the canonical path, modification time and length
+ * of the descriptor file, so a modified file is parsed again. The least
+ * recently used descriptors are evicted when the cache is full.
+ * Each call returns a fresh copy of the cached descriptor, which the caller
+ * is free to modify.
+ *
+ * @author  Thomas Broyer
+ */
+public final class BpiDescriptorCache {
+    static public final int DEFAULT_CAPACITY = 64;
+
+    static private int capacity = DEFAULT_CAPACITY;
+
+    static private final Map cache = new LinkedHashMap(16, 0.75F, true) {
+	protected boolean removeEldestEntry (Map.Entry eldest) {
+	    return size() > capacity;
+	}
+    };
+
+    static private long hits = 0;
+    static private long misses = 0;
+
+    /** Not instantiable */
+    private BpiDescriptorCache() {
+    }
+
+    /**
+     * Returns a copy of the descriptor read from the given file, parsing it
+     * only if it is not in the cache or has been modified since.
+     *
+     * @param file the descriptor file.
+     * @return the descriptor, or <code>null</code> if the file does not exist
+     *         or is not a valid descriptor.
+     */
+    static public BpiStreamMetadata getDescriptor (File file) throws IOException {
+	BpiFileKey key = BpiFileKey.forFile(file);
+	if (key == null) {
+	    return null;
+	}
+
+	BpiStreamMetadata descriptor;
+	synchronized (cache) {
+	    descriptor = (BpiStreamMetadata) cache.get(key);
+	    if (descriptor != null) {
+		hits++;
+	    } else {
+		misses++;
+	    }
+	}
+	if (descriptor == null) {
+	    // parse outside of the lock; concurrent misses on the same file
+	    // only cost a redundant parse.
+	    descriptor = BpiCodec.readDescriptor(file);
+	    if (descriptor == null) {
+		return null;
+	    }
+	    synchronized (cache) {
+		cache.put(key, descriptor);
+	    }
+	}
+	return new BpiStreamMetadata(descriptor);
+    }
+
+    /**
+     * Sets the maximum number of descriptors kept in the cache.
+     * A capacity of <code>0</code> disables the cache.
+     */
+    static public void setCapacity (int capacity) {
+	if (capacity < 0) {
+	    throw new IllegalArgumentException("capacity must not be negative.");
+	}
+	synchronized (cache) {
+	    BpiDescriptorCache.capacity = capacity;
+	    if (capacity == 0) {
+		cache.clear();
+	    }
+	}
+    }
+
+    static public int getCapacity() {
+	synchronized (cache) {
+	    return capacity;
+	}
+    }
+
+    static public void clear() {
+	synchronized (cache) {
+	    cache.clear();
+	}
+    }
+
+    static public long getHitCount() {
+	synchronized (cache) {
+	    return hits;
+	}
+    }
+
+    static public long getMissCount() {
+	synchronized (cache) {
+	    return misses;
+	}
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * ImageOutputStream writing to a file through a FileChannel.
+ *
+ * Bytes are gathered in a direct buffer mapping a window of the file, so
+ * that the many small writes (and reads of partial bytes) issued while
+ * packing bits never reach the file system. The window is written to the
+ * channel only when the stream moves out of it, or when
+ * {@link #flushBuffer(boolean)} or {@link #close()} is called.
+ *
+ * @author  Thomas Broyer
+ */
+class BpiFileChannelOutputStream extends ImageOutputStreamImpl {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    /** Stream position of the first byte of the buffer. */
+    private long bufferStart = 0;
+    /** Number of bytes of the buffer holding data. */
+    private int bufferLength = 0;
+    /** Whether the buffer holds data not yet written to the channel. */
+    private boolean dirty = false;
+    /** Length of the stream, including the buffered data. */
+    private long length;
+
+    /** Creates a new instance of BpiFileChannelOutputStream */
+    BpiFileChannelOutputStream (File f, int bufferSize) throws IOException {
+	this.file = new RandomAccessFile(f, "rw");
+	this.channel = file.getChannel();
+	this.buffer = ByteBuffer.allocateDirect(bufferSize);
+	this.length = channel.size();
+    }
+
+    public int read() throws IOException {
+	checkClosed();
+	bitOffset = 0;
+	if (streamPos >= length) {
+	    return -1;
+	}
+	moveBuffer(streamPos);
+	int index = (int) (streamPos - bufferStart);
+	if (index >= bufferLength) {
+	    return -1;
+	}
+	streamPos++;
+	return buffer.get(index) & 0xFF;
+    }
+
+    public int read (byte[] b, int off, int len) throws IOException {
+	checkClosed();
+	if ((off < 0) || (len < 0) || (off + len > b.length)) {
+	    throw new IndexOutOfBoundsException();
+	}
+	bitOffset = 0;
+	if (len == 0) {
+	    return 0;
+	}
+	if (streamPos >= length) {
+	    return -1;
+	}
+	moveBuffer(streamPos);
+	int index = (int) (streamPos - bufferStart);
+	len = Math.min(len, bufferLength - index);
+	if (len <= 0) {
+	    return -1;
+	}
+	ByteBuffer src = buffer.duplicate();
+	src.position(index);
+	src.get(b, off, len);
+	streamPos += len;
+	return len;
+    }
+
+    public void write (int b) throws IOException {
+	checkClosed();
+	flushBits();
+	moveBuffer(streamPos);
+	int index = (int) (streamPos - bufferStart);
+	buffer.put(index, (byte) b);
+	written(index + 1);
+    }
+
+    public void write (byte[] b, int off, int len) throws IOException {
+	checkClosed();
+	if ((off < 0) || (len < 0) || (off + len > b.length)) {
+	    throw new IndexOutOfBoundsException();
+	}
+	flushBits();
+	while (len > 0) {
+	    moveBuffer(streamPos);
+	    int index = (int) (streamPos - bufferStart);
+	    int count = Math.min(len, buffer.capacity() - index);
+	    ByteBuffer dst = buffer.duplicate();
+	    dst.position(index);
+	    dst.put(b, off, count);
+	    written(index + count);
+	    off += count;
+	    len -= count;
+	}
+    }
+
+    public long length() {
+	return length;
+    }
+
+    /**
+     * Writes the buffered data to the file.
+     *
+     * @param force whether to also force the file content to the storage
+     *	device.
+     */
+    void flushBuffer (boolean force) throws IOException {
+	checkClosed();
+	writeBuffer();
+	if (force) {
+	    channel.force(false);
+	}
+    }
+
+    public void close() throws IOException {
+	writeBuffer();
+	super.close();
+	file.close();
+    }
+
+    /**
+     * Records that the buffer holds data up to <code>end</code>, and moves
+     * the stream position there.
+     */
+    private void written (int end) {
+	if (end > bufferLength) {
+	    bufferLength = end;
+	}
+	dirty = true;
+	streamPos = bufferStart + end;
+	if (streamPos > length) {
+	    length = streamPos;
+	}
+    }
+
+    /**
+     * Makes the buffer map the window of the file holding
+     * <code>pos</code>, writing back the current window if needed.
+     */
+    private void moveBuffer (long pos) throws IOException {
+	if ((pos >= bufferStart) && (pos < bufferStart + buffer.capacity())) {
+	    return;
+	}
+	writeBuffer();
+	bufferStart = pos;
+	bufferLength = 0;
+	if (pos < length) {
+	    ByteBuffer dst = buffer.duplicate();
+	    dst.clear();
+	    while (dst.hasRemaining()) {
+		int count = channel.read(dst, pos + dst.position());
+		if (count < 0) {
+		    break;
+		}
+	    }
+	    bufferLength = dst.position();
+	}
+    }
+
+    private void writeBuffer() throws IOException {
+	if (!dirty) {
+	    return;
+	}
+	ByteBuffer src = buffer.duplicate();
+	src.clear();
+	src.limit(bufferLength);
+	while (src.hasRemaining()) {
+	    channel.write(src, bufferStart + src.position());
+	}
+	dirty = false;
+    }
+}
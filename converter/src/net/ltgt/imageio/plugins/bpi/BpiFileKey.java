@@ -0,0 +1,83 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifies a version of a file: its canonical path, last modification
+ * time and length.
+ * Used as a key by the process-wide caches.
+ *
+ * @author  Thomas Broyer
+ */
+final class BpiFileKey {
+    private final String path;
+    private final long lastModified;
+    private final long length;
+
+    private BpiFileKey (String path, long lastModified, long length) {
+	this.path = path;
+	this.lastModified = lastModified;
+	this.length = length;
+    }
+
+    /**
+     * Returns the key of the current version of a file, or <code>null</code>
+     * if the file does not exist or cannot be resolved.
+     */
+    static BpiFileKey forFile (File file) {
+	try {
+	    File canonical = file.getCanonicalFile();
+	    if (!canonical.isFile()) {
+		return null;
+	    }
+	    return new BpiFileKey(canonical.getPath(), canonical.lastModified(), canonical.length());
+	} catch (IOException ioe) {
+	    return null;
+	} catch (SecurityException se) {
+	    return null;
+	}
+    }
+
+    public boolean equals (Object obj) {
+	if (this == obj)
+	    return true;
+	if (!(obj instanceof BpiFileKey))
+	    return false;
+	BpiFileKey other = (BpiFileKey) obj;
+	return (lastModified == other.lastModified)
+	    && (length == other.length)
+	    && path.equals(other.path);
+    }
+
+    public int hashCode() {
+	int hash = path.hashCode();
+	hash = 31 * hash + (int) (lastModified ^ (lastModified >>> 32));
+	hash = 31 * hash + (int) (length ^ (length >>> 32));
+	return hash;
+    }
+
+    public String toString() {
+	return path + "@" + lastModified + "/" + length;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream reading an InputStream forward only, without caching it.
+ *
+ * Only the last bytes read are kept, so that the stream can go back a
+ * little, as bit-level reads need; seeking further backward fails.
+ * The InputStream is not closed with the stream.
+ *
+ * @author  Thomas Broyer
+ */
+class BpiForwardInputStream extends ImageInputStreamImpl {
+    /** Size of the buffer. */
+    static private final int BUFFER_SIZE = 8192;
+    /** Number of bytes kept before the current position when filling the buffer. */
+    static private final int KEEP_SIZE = 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    /** Position, in the stream, of the first byte of the buffer. */
+    private long bufferStart = 0;
+    /** Number of bytes in the buffer. */
+    private int bufferLength = 0;
+
+    /** Creates a new instance of BpiForwardInputStream */
+    BpiForwardInputStream (InputStream in) {
+	this.in = in;
+    }
+
+    public int read() throws IOException {
+	checkClosed();
+	bitOffset = 0;
+	if ((streamPos >= bufferStart + bufferLength) && !fill()) {
+	    return -1;
+	}
+	return buffer[(int) (streamPos++ - bufferStart)] & 0xFF;
+    }
+
+    public int read (byte[] b, int off, int len) throws IOException {
+	checkClosed();
+	if ((off < 0) || (len < 0) || (off + len > b.length)) {
+	    throw new IndexOutOfBoundsException();
+	}
+	bitOffset = 0;
+	if (len == 0) {
+	    return 0;
+	}
+	if ((streamPos >= bufferStart + bufferLength) && !fill()) {
+	    return -1;
+	}
+	len = (int) Math.min(len, bufferStart + bufferLength - streamPos);
+	System.arraycopy(buffer, (int) (streamPos - bufferStart), b, off, len);
+	streamPos += len;
+	return len;
+    }
+
+    public void seek (long pos) throws IOException {
+	checkClosed();
+	if (pos < bufferStart) {
+	    throw new IIOException("Cannot seek backward in a forward-only stream.");
+	}
+	super.seek(pos);
+    }
+
+    /**
+     * Reads more bytes from the InputStream, skipping up to the current
+     * position first.
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+	long end = bufferStart + bufferLength;
+	if (streamPos > end) {
+	    // skip the bytes between the buffer and the current position
+	    long n = streamPos - end;
+	    while (n > 0) {
+		long skipped = in.skip(n);
+		if (skipped <= 0) {
+		    if (in.read() < 0) {
+			return false;
+		    }
+		    skipped = 1;
+		}
+		n -= skipped;
+	    }
+	    bufferStart = streamPos;
+	    bufferLength = 0;
+	} else {
+	    // keep the last bytes, so that the stream can go back a little
+	    int keep = (int) Math.min(KEEP_SIZE, streamPos - bufferStart);
+	    int discard = bufferLength - keep;
+	    System.arraycopy(buffer, discard, buffer, 0, keep);
+	    bufferStart += discard;
+	    bufferLength = keep;
+	}
+	int n = in.read(buffer, bufferLength, buffer.length - bufferLength);
+	if (n <= 0) {
+	    return false;
+	}
+	bufferLength += n;
+	return true;
+    }
+}
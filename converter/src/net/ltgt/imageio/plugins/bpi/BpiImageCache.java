@@ -0,0 +1,291 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * Cache of decoded BPI images, bounded by the memory used by the images.
+ *
+ * Images are keyed by file version (see {@link BpiFileKey}), the
+ * descriptor they are read with, image index and the read parameters that
+ * affect decoding; the least recently used
+ * images are evicted when the byte budget is exceeded.
+ * A cache can safely be shared between threads.
+ *
+ * Cached images are shared between callers and must not be modified.
+ * Reads using a destination image set in the read param are never cached.
+ *
+ * @author  Thomas Broyer
+ */
+public class BpiImageCache {
+    static private final BpiImageReaderSpi readerSpi = new BpiImageReaderSpi();
+
+    private final Map images = new LinkedHashMap(16, 0.75F, true);
+    private long maxBytes;
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Creates a new instance of BpiImageCache
+     * @param maxBytes the maximum memory, in bytes, used by the cached images.
+     */
+    public BpiImageCache (long maxBytes) {
+	setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Reads an image from a file, through the cache.
+     * The file is read with its descriptor file, if any, as
+     * <code>getStreamMetadata</code> would find it.
+     *
+     * @param file the BPI file.
+     * @param imageIndex the index of the image to read.
+     * @param param the read param, or <code>null</code>.
+     * @return the decoded image, which must not be modified.
+     */
+    public BufferedImage read (File file, int imageIndex, ImageReadParam param) throws IOException {
+	BpiImageReader reader = new BpiImageReader(readerSpi);
+	try {
+	    reader.setInput(file);
+	    // the descriptor tells which images the file holds
+	    reader.getStreamMetadata();
+	    return read(reader, imageIndex, param);
+	} finally {
+	    reader.dispose();
+	}
+    }
+
+    /**
+     * Reads an image from the current input of a reader, through the cache.
+     * Only <code>File</code> inputs are cached, other inputs are read directly,
+     * as are images read with a descriptor that cannot be identified.
+     *
+     * @param reader the reader, whose input has been set.
+     * @param imageIndex the index of the image to read.
+     * @param param the read param, or <code>null</code>.
+     * @return the decoded image, which must not be modified if it comes from
+     *         a <code>File</code> input.
+     */
+    public BufferedImage read (BpiImageReader reader, int imageIndex, ImageReadParam param) throws IOException {
+	Object input = reader.getInput();
+	if (!(input instanceof File)) {
+	    return reader.read(imageIndex, param);
+	}
+	Key key = createKey((File) input, reader.getDescriptorKey(), imageIndex, param);
+	BufferedImage image = get(key);
+	if (image == null) {
+	    image = reader.read(imageIndex, param);
+	    put(key, image);
+	}
+	return image;
+    }
+
+    /**
+     * Sets the maximum memory, in bytes, used by the cached images.
+     * Images are evicted as needed.
+     */
+    public synchronized void setMaxBytes (long maxBytes) {
+	if (maxBytes < 0) {
+	    throw new IllegalArgumentException("maxBytes must not be negative.");
+	}
+	this.maxBytes = maxBytes;
+	evict();
+    }
+
+    public synchronized long getMaxBytes() {
+	return maxBytes;
+    }
+
+    /** Returns the memory, in bytes, currently used by the cached images. */
+    public synchronized long getBytes() {
+	return bytes;
+    }
+
+    public synchronized int size() {
+	return images.size();
+    }
+
+    public synchronized long getHitCount() {
+	return hits;
+    }
+
+    public synchronized long getMissCount() {
+	return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+	return evictions;
+    }
+
+    public synchronized void clear() {
+	images.clear();
+	bytes = 0;
+    }
+
+    private synchronized BufferedImage get (Key key) {
+	if (key == null) {
+	    misses++;
+	    return null;
+	}
+	BufferedImage image = (BufferedImage) images.get(key);
+	if (image != null) {
+	    hits++;
+	} else {
+	    misses++;
+	}
+	return image;
+    }
+
+    private synchronized void put (Key key, BufferedImage image) {
+	if ((key == null) || (image == null)) {
+	    return;
+	}
+	long size = sizeOf(image);
+	if (size > maxBytes) {
+	    return;
+	}
+	// concurrent misses on the same image may decode it twice; keep the last one
+	BufferedImage old = (BufferedImage) images.put(key, image);
+	if (old != null) {
+	    bytes -= sizeOf(old);
+	}
+	bytes += size;
+	evict();
+    }
+
+    private void evict() {
+	for (Iterator iter = images.values().iterator(); (bytes > maxBytes) && iter.hasNext(); ) {
+	    BufferedImage image = (BufferedImage) iter.next();
+	    iter.remove();
+	    bytes -= sizeOf(image);
+	    evictions++;
+	}
+    }
+
+    static private long sizeOf (BufferedImage image) {
+	DataBuffer db = image.getRaster().getDataBuffer();
+	long elementSize = DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+	return Math.max(elementSize, 1) * db.getSize() * db.getNumBanks();
+    }
+
+    /**
+     * Creates the key of an image, or returns <code>null</code> if it
+     * cannot be cached.
+     */
+    static private Key createKey (File file, Object descriptor, int imageIndex, ImageReadParam param) {
+	if ((descriptor == null) || ((param != null) && (param.getDestination() != null))) {
+	    return null;
+	}
+	BpiFileKey fileKey = BpiFileKey.forFile(file);
+	if (fileKey == null) {
+	    return null;
+	}
+	return new Key(fileKey, descriptor, imageIndex, param);
+    }
+
+    /**
+     * Identifies a decoded image: file version, descriptor key (see
+     * <code>BpiImageReader.getDescriptorKey</code>), image index and the
+     * read param settings affecting decoding.
+     */
+    static private final class Key {
+	private final BpiFileKey file;
+	private final Object descriptor;
+	private final int imageIndex;
+	private final Rectangle sourceRegion;
+	private final int[] subsampling;
+	private final Point destinationOffset;
+	private final ImageTypeSpecifier destinationType;
+	private final int[] sourceBands;
+	private final int[] destinationBands;
+
+	Key (BpiFileKey file, Object descriptor, int imageIndex, ImageReadParam param) {
+	    this.file = file;
+	    this.descriptor = descriptor;
+	    this.imageIndex = imageIndex;
+	    if (param == null) {
+		sourceRegion = null;
+		subsampling = null;
+		destinationOffset = null;
+		destinationType = null;
+		sourceBands = null;
+		destinationBands = null;
+	    } else {
+		sourceRegion = param.getSourceRegion();
+		subsampling = new int[] {
+		    param.getSourceXSubsampling(), param.getSourceYSubsampling(),
+		    param.getSubsamplingXOffset(), param.getSubsamplingYOffset()
+		};
+		destinationOffset = param.getDestinationOffset();
+		destinationType = param.getDestinationType();
+		sourceBands = param.getSourceBands();
+		destinationBands = param.getDestinationBands();
+	    }
+	}
+
+	public boolean equals (Object obj) {
+	    if (!(obj instanceof Key))
+		return false;
+	    Key other = (Key) obj;
+	    return file.equals(other.file)
+		&& descriptor.equals(other.descriptor)
+		&& (imageIndex == other.imageIndex)
+		&& equal(sourceRegion, other.sourceRegion)
+		&& Arrays.equals(subsampling, other.subsampling)
+		&& equal(destinationOffset, other.destinationOffset)
+		&& equal(destinationType, other.destinationType)
+		&& Arrays.equals(sourceBands, other.sourceBands)
+		&& Arrays.equals(destinationBands, other.destinationBands);
+	}
+
+	public int hashCode() {
+	    int hash = file.hashCode();
+	    hash = 31 * hash + descriptor.hashCode();
+	    hash = 31 * hash + imageIndex;
+	    hash = 31 * hash + ((sourceRegion == null) ? 0 : sourceRegion.hashCode());
+	    if (subsampling != null) {
+		for (int i = 0; i < subsampling.length; i++) {
+		    hash = 31 * hash + subsampling[i];
+		}
+	    }
+	    return hash;
+	}
+
+	static private boolean equal (Object o1, Object o2) {
+	    return (o1 == null) ? (o2 == null) : o1.equals(o2);
+	}
+    }
+}
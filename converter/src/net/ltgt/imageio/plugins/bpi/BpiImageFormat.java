@@ -74,4 +74,55 @@ interface BpiImageFormat {
     static public final int MIN_DEPTH_TO_USE_PALETTE = 1;
     static public final int MIN_PALETTE_LENGTH = 2;
     static public final int MAX_PALETTE_LENGTH = (1 << MAX_BITS_PER_COLOR) - 1 + MIN_PALETTE_LENGTH;
+
+    // Container header: "BPIC" magic, version, flags and block count,
+    // followed by the block table and the bit offset of each block.
+    static public final int CONTAINER_MAGIC = 0x42504943;
+    static public final int CONTAINER_VERSION = 1;
+    static public final int CONTAINER_FIXED_HEADER_SIZE = 8;
+    static public final int CONTAINER_MAX_BLOCKS = 0xFFFF;
+    static public final int CONTAINER_MAX_COLOR_MODELS = 0xFFFF;
+    // Container flags
+    static public final int CONTAINER_COMPRESSED_RASTERS = 0x01;
+    // Every block starts on a byte boundary, padded with zero bits.
+    static public final int CONTAINER_ALIGNED_BLOCKS = 0x02;
+    // Every block, and the pixels and every row of every raster, start on
+    // a byte boundary; only for uncompressed rasters.
+    static public final int CONTAINER_ALIGNED_ROWS = 0x04;
+    // Every raster is stored by tiles, see TILE_OFFSET_SIZE.
+    static public final int CONTAINER_TILED_RASTERS = 0x08;
+    static public final int CONTAINER_KNOWN_FLAGS = CONTAINER_COMPRESSED_RASTERS
+	| CONTAINER_ALIGNED_BLOCKS | CONTAINER_ALIGNED_ROWS | CONTAINER_TILED_RASTERS;
+
+    // In containers with compressed rasters, the raster size is followed by
+    // the compression method of the pixels.
+    static public final int RASTER_COMPRESSION_SIZE = 2;
+    static public final int COMPRESSION_NONE = 0;
+    static public final int COMPRESSION_RLE = 1;
+    // Run-length encoded pixels: runs of a repeat bit and a length, followed
+    // by one pixel repeated length times, or by length literal pixels.
+    static public final int RUN_LENGTH_SIZE = 7;
+    static public final int MIN_RUN_LENGTH = 1;
+    static public final int MAX_RUN_LENGTH = (1 << RUN_LENGTH_SIZE) - 1 + MIN_RUN_LENGTH;
+    // Predictively coded pixels: each row is filtered, as in PNG, by one of
+    // the following predictors applied to every sample, then the filter of
+    // each row and the residuals of the samples are range coded, samples
+    // wider than MAX_CODED_SAMPLE_SIZE in several parts.
+    static public final int COMPRESSION_PREDICTIVE = 2;
+    static public final int FILTER_SIZE = 3;
+    static public final int FILTER_NONE = 0;
+    static public final int FILTER_LEFT = 1;
+    static public final int FILTER_UP = 2;
+    static public final int FILTER_AVERAGE = 3;
+    static public final int FILTER_PAETH = 4;
+    static public final int NUM_FILTERS = 5;
+    static public final int MAX_CODED_SAMPLE_SIZE = 8;
+
+    // Tiled rasters: the raster size is followed by the tile size, stored
+    // the same way, and by the offset of each tile, in bits from the first
+    // tile, row of tiles after row of tiles; the first tile starts on a byte
+    // boundary when rows are aligned. Each tile holds its
+    // pixels as a raster of the tile size (clipped to the raster bounds)
+    // would, compression method included.
+    static public final int TILE_OFFSET_SIZE = 32;
 }
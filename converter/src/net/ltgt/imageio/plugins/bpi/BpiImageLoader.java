@@ -0,0 +1,188 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.IIOException;
+
+/**
+ * Reads a set of images in the background, for instance to warm up a
+ * cache at application start.
+ *
+ * Images are read by tasks, each with its own sibling of the given reader
+ * (see {@link BpiImageReader#createSibling()}), so that they start with
+ * the offsets the reader already knows. The tasks share the list of
+ * images to read, taking the next one in order until none is left. They
+ * can be run by {@link #start(int)}, or handed to any thread or executor
+ * through {@link #createTask()}.
+ * Each image is then waited for with {@link #get(int)}, and the whole
+ * load can be cancelled with {@link #cancel()}, which aborts the reads in
+ * progress.
+ *
+ * @author  Thomas Broyer
+ */
+public class BpiImageLoader {
+    private final BpiImageReader reader;
+    private final int[] imageIndices;
+    private final BufferedImage[] images;
+    private final IOException[] errors;
+    private final boolean[] done;
+    /** Position, in <code>imageIndices</code>, of the next image to read. */
+    private int next = 0;
+    private boolean cancelled = false;
+    /** Readers of the running tasks, aborted on cancel. */
+    private final List activeReaders = new ArrayList();
+
+    /**
+     * Creates a new instance of BpiImageLoader
+     * @param reader the reader whose input is read; it should not be used
+     *	while the tasks are being created.
+     * @param imageIndices the indices of the images to read.
+     */
+    public BpiImageLoader (BpiImageReader reader, int[] imageIndices) {
+	this.reader = reader;
+	this.imageIndices = (int[]) imageIndices.clone();
+	this.images = new BufferedImage[imageIndices.length];
+	this.errors = new IOException[imageIndices.length];
+	this.done = new boolean[imageIndices.length];
+    }
+
+    /**
+     * Starts reading the images with new daemon threads.
+     * @param numThreads the number of threads.
+     */
+    public void start (int numThreads) {
+	for (int i = 0; i < numThreads; i++) {
+	    Thread thread = new Thread(createTask(), "BPI loader");
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+    }
+
+    /**
+     * Creates a task reading images until none is left. Several tasks can
+     * run concurrently.
+     * @return the task, to be run by any thread.
+     */
+    public Runnable createTask() {
+	final BpiImageReader sibling = reader.createSibling();
+	return new Runnable() {
+	    public void run() {
+		synchronized (BpiImageLoader.this) {
+		    activeReaders.add(sibling);
+		}
+		try {
+		    int position;
+		    while ((position = take()) >= 0) {
+			BufferedImage image = null;
+			IOException error = null;
+			try {
+			    image = sibling.read(imageIndices[position]);
+			} catch (IOException ioe) {
+			    error = ioe;
+			} catch (RuntimeException re) {
+			    error = new IIOException("Unable to read image "
+				+ imageIndices[position] + ".", re);
+			}
+			complete(position, image, error);
+		    }
+		} finally {
+		    synchronized (BpiImageLoader.this) {
+			activeReaders.remove(sibling);
+		    }
+		    sibling.dispose();
+		}
+	    }
+	};
+    }
+
+    /**
+     * Returns the position of the next image to read, or <code>-1</code>
+     * if there is none left.
+     */
+    private synchronized int take() {
+	if (cancelled || (next >= imageIndices.length)) {
+	    return -1;
+	}
+	return next++;
+    }
+
+    private synchronized void complete (int position, BufferedImage image, IOException error) {
+	if (cancelled) {
+	    // the read may have been aborted, the image is incomplete
+	    return;
+	}
+	images[position] = image;
+	errors[position] = error;
+	done[position] = true;
+	notifyAll();
+    }
+
+    /**
+     * Returns whether an image has been read, or failed to be read.
+     * @param position the position of the image in the indices given to
+     *	the constructor.
+     */
+    public synchronized boolean isDone (int position) {
+	return done[position];
+    }
+
+    /**
+     * Waits for an image to be read and returns it.
+     * @param position the position of the image in the indices given to
+     *	the constructor.
+     * @return the image.
+     * @throws IOException if the image could not be read, or if the load
+     *	was cancelled before.
+     */
+    public synchronized BufferedImage get (int position) throws IOException, InterruptedException {
+	while (!done[position]) {
+	    if (cancelled) {
+		throw new IIOException("Reading image " + imageIndices[position] + " was cancelled.");
+	    }
+	    wait();
+	}
+	if (errors[position] != null) {
+	    throw errors[position];
+	}
+	return images[position];
+    }
+
+    /**
+     * Stops reading images: no other image is read, and the reads in
+     * progress are aborted. Images already read are kept.
+     */
+    public synchronized void cancel() {
+	cancelled = true;
+	for (int i = 0; i < activeReaders.size(); i++) {
+	    ((BpiImageReader) activeReaders.get(i)).abort();
+	}
+	notifyAll();
+    }
+
+    public synchronized boolean isCancelled() {
+	return cancelled;
+    }
+}
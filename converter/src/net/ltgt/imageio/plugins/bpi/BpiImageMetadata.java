@@ -322,6 +322,19 @@ public class BpiImageMetadata extends IIOMetadata {
 //	return metadata;
 //    }
 
+    /**
+     * Returns true if both metadata describe the same color model, that is
+     * if <code>createCompatibleColorModel</code> returns equal color models.
+     */
+    boolean isSameColorModel (BpiImageMetadata metadata) {
+	return (depth == metadata.depth) && (isARGB == metadata.isARGB)
+	    && (hasAlpha == metadata.hasAlpha) && (bitsPerColor == metadata.bitsPerColor)
+	    && (hasTransparentColor == metadata.hasTransparentColor)
+	    && (transparentColor == metadata.transparentColor)
+	    && (bitsPerPixel == metadata.bitsPerPixel)
+	    && Arrays.equals(palette, metadata.palette);
+    }
+
     public ColorModel createCompatibleColorModel() {
 	if (palette != null) {
 	    return new IndexColorModel(bitsPerPixel, palette.length, palette, 0,
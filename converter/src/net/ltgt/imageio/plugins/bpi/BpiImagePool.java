@@ -0,0 +1,174 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of reusable BPI readers and writers.
+ *
+ * Readers and writers are created directly from their service providers,
+ * without going through the <code>IIORegistry</code>.
+ * Released instances are reset, which forgets everything about their
+ * input or output and closes the streams they created, but keeps their
+ * internal buffers and lookup tables for the next use.
+ * A pool can safely be shared between threads; each reader or writer must
+ * only be used by one thread between its acquisition and its release.
+ *
+ * @author  Thomas Broyer
+ */
+public class BpiImagePool {
+    /** Default maximum number of idle readers, and of idle writers. */
+    static public final int DEFAULT_MAX_IDLE = 16;
+
+    static private final BpiImageReaderSpi readerSpi = new BpiImageReaderSpi();
+    static private final BpiImageWriterSpi writerSpi = new BpiImageWriterSpi();
+
+    private final List readers = new ArrayList();
+    private final List writers = new ArrayList();
+    private volatile int maxIdle;
+
+    /** Creates a new instance of BpiImagePool */
+    public BpiImagePool() {
+	this(DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Creates a new instance of BpiImagePool
+     * @param maxIdle the maximum number of idle readers, and of idle writers,
+     *	kept by the pool.
+     */
+    public BpiImagePool (int maxIdle) {
+	setMaxIdle(maxIdle);
+    }
+
+    /**
+     * Returns an idle reader, or a new one if there is none.
+     * The reader must be given back with {@link #releaseReader}.
+     */
+    public BpiImageReader acquireReader() {
+	synchronized (readers) {
+	    if (!readers.isEmpty()) {
+		return (BpiImageReader) readers.remove(readers.size() - 1);
+	    }
+	}
+	return new BpiImageReader(readerSpi);
+    }
+
+    /**
+     * Gives a reader back to the pool.
+     * The reader is reset, and disposed of if the pool is full.
+     */
+    public void releaseReader (BpiImageReader reader) {
+	reader.reset();
+	synchronized (readers) {
+	    if (readers.size() < maxIdle) {
+		readers.add(reader);
+		return;
+	    }
+	}
+	reader.dispose();
+    }
+
+    /**
+     * Returns an idle writer, or a new one if there is none.
+     * The writer must be given back with {@link #releaseWriter}.
+     */
+    public BpiImageWriter acquireWriter() {
+	synchronized (writers) {
+	    if (!writers.isEmpty()) {
+		return (BpiImageWriter) writers.remove(writers.size() - 1);
+	    }
+	}
+	return new BpiImageWriter(writerSpi);
+    }
+
+    /**
+     * Gives a writer back to the pool.
+     * The writer is reset, and disposed of if the pool is full.
+     */
+    public void releaseWriter (BpiImageWriter writer) {
+	writer.reset();
+	synchronized (writers) {
+	    if (writers.size() < maxIdle) {
+		writers.add(writer);
+		return;
+	    }
+	}
+	writer.dispose();
+    }
+
+    /**
+     * Sets the maximum number of idle readers, and of idle writers, kept by
+     * the pool. Extra idle instances are disposed of.
+     */
+    public void setMaxIdle (int maxIdle) {
+	if (maxIdle < 0) {
+	    throw new IllegalArgumentException("maxIdle must not be negative.");
+	}
+	this.maxIdle = maxIdle;
+	trim(readers, maxIdle);
+	trim(writers, maxIdle);
+    }
+
+    public int getMaxIdle() {
+	return maxIdle;
+    }
+
+    /** Returns the number of idle readers. */
+    public int getIdleReaderCount() {
+	synchronized (readers) {
+	    return readers.size();
+	}
+    }
+
+    /** Returns the number of idle writers. */
+    public int getIdleWriterCount() {
+	synchronized (writers) {
+	    return writers.size();
+	}
+    }
+
+    /** Disposes of every idle reader and writer. */
+    public void clear() {
+	trim(readers, 0);
+	trim(writers, 0);
+    }
+
+    static private void trim (List pool, int size) {
+	List removed = new ArrayList();
+	synchronized (pool) {
+	    while (pool.size() > size) {
+		removed.add(pool.remove(pool.size() - 1));
+	    }
+	}
+	for (int i = 0; i < removed.size(); i++) {
+	    Object o = removed.get(i);
+	    if (o instanceof BpiImageReader) {
+		((BpiImageReader) o).dispose();
+	    } else {
+		((BpiImageWriter) o).dispose();
+	    }
+	}
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import javax.imageio.ImageReadParam;
+
+/**
+ * Read parameters for the BPI format.
+ *
+ * @author  Thomas Broyer
+ */
+public class BpiImageReadParam extends ImageReadParam {
+    /** Default number of rows decoded between two image updates. */
+    static public final int DEFAULT_UPDATE_BAND_HEIGHT = 16;
+
+    private int updateBandHeight = DEFAULT_UPDATE_BAND_HEIGHT;
+
+    BpiImageReadParam() {
+	super();
+	canSetSourceRenderSize = false;
+    }
+
+    /**
+     * Sets the number of rows decoded between two notifications of the
+     * <code>IIOReadUpdateListener</code>s registered with the reader.
+     * Updates are not computed at all when no such listener is registered.
+     *
+     * @param value the height of the updated bands, in destination rows.
+     */
+    public void setUpdateBandHeight (int value) {
+	if (value <= 0) {
+	    throw new IllegalArgumentException("Band height must be positive.");
+	}
+	updateBandHeight = value;
+    }
+
+    public int getUpdateBandHeight() {
+	return updateBandHeight;
+    }
+}
@@ -26,10 +26,13 @@ import javax.imageio.spi.*;
 import javax.imageio.stream.*;
 import java.util.*;
 import java.awt.Dimension;
+import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.Transparency;
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 
 /**
  * Subclass of {@link javax.imageio.ImageReader} for Bit-Packed Image reading.
@@ -47,6 +50,26 @@ public class BpiImageReader extends ImageReader {
      * The {@link ImageInputStream} associated to the current input.
      */
     private ImageInputStream stream = null;
+    /**
+     * Whether <code>stream</code> has been created by the reader, which
+     * must then close it.
+     */
+    private boolean streamOwned = false;
+
+    /**
+     * Container header of the current input, or <CODE>null</CODE> if the input
+     * is a bare BPI stream.
+     * When present, it takes precedence over any other descriptor.
+     */
+    private BpiContainerHeader container = null;
+    /**
+     * Whether the input has already been probed for a container header.
+     */
+    private boolean headerRead = false;
+    /**
+     * Position of the first block in the stream.
+     */
+    private long streamStart = 0;
 
     /**
      * List of read BpiImageMetadata when a descriptor is used.
@@ -71,6 +94,43 @@ public class BpiImageReader extends ImageReader {
      * @see currentIndex
      */
     private Dimension imageSize = null;
+    /**
+     * Position, in bits, of the pixels of the last read image.
+     * @see currentIndex
+     */
+    private long imageDataPosition = -1;
+    /**
+     * Index of the raster of the last read image, and position, in bits,
+     * of its end, so that the next raster can be located without going
+     * back to the start of this one.
+     * @see currentIndex
+     */
+    private int currentRaster = -1;
+    private long rasterEnd = -1;
+    /**
+     * Pixels of the raster of the last read image when it is compressed:
+     * compressed pixels cannot be located without decoding the whole
+     * raster, so it is decoded at once when its header is read.
+     * @see currentRaster
+     */
+    private int[] decodedPixels = null;
+    private boolean rasterDecoded = false;
+    /**
+     * Distance, in bits, between two rows of the raster of the last read
+     * image, larger than a row when rows are byte aligned.
+     * @see currentRaster
+     */
+    private long rowStride = 0;
+    /**
+     * Position, in bits, of each tile of the raster of the last read image,
+     * and size of its tiles, when it is stored by tiles; <code>null</code>
+     * otherwise.
+     * @see currentRaster
+     */
+    private long[] tileOffsets = null;
+    private Dimension rasterTileSize = null;
+    /** Color model of the raster of the last read image, giving its pixel layout. */
+    private BpiImageMetadata rasterMetadata = null;
 
     /**
      * Byte offset (from the start of the stream) of each raster, stored as a {@link Long}.
@@ -83,11 +143,112 @@ public class BpiImageReader extends ImageReader {
      * @see byteOffsets
      */
     private List bitOffsets = new ArrayList(); // List of Integers
+    /**
+     * Index of the raster (or image) the first element of
+     * <CODE>byteOffsets</CODE> leads to. Offsets of the rasters that can no
+     * longer be read are dropped in forward-only mode.
+     * @see byteOffsets
+     */
+    private int firstOffset = 0;
+    /**
+     * Color model indices sorted by the last raster using them, and the
+     * position in this array of the next color model to drop, in
+     * forward-only mode.
+     * @see lastColorModelUse
+     */
+    private int[] colorModelsByLastUse = null;
+    private int nextColorModelToDrop = 0;
+    /**
+     * Index of the last raster using each color model, or <CODE>-1</CODE>
+     * for unused color models.
+     */
+    private int[] lastColorModelUse = null;
     /**
      * Number of images in the input, or <CODE>-1</CODE> if not yet computed.
      */
     private int numImages = -1;
 
+    /**
+     * Buffer used to read packed pixels in bulk, kept across reads.
+     */
+    private byte[] pixelBuffer = null;
+    /**
+     * Buffers used to convert rows of pixels, kept across reads.
+     */
+    private int[] rowBuffer = null;
+    private int[] rgbBuffer = null;
+    private int[] sampleBuffer = null;
+    private final Rectangle srcRegion = new Rectangle();
+    private final Rectangle dstRegion = new Rectangle();
+
+    /**
+     * Largest number of bits per pixel for which a lookup table is used to
+     * convert pixels to ARGB.
+     */
+    static private final int MAX_LOOKUP_TABLE_BITS = 12;
+    /**
+     * Color model of the last image read, and the metadata it was created
+     * from, so that reading the same image again allocates nothing.
+     */
+    private BpiImageMetadata colorModelMetadata = null;
+    private ColorModel colorModel = null;
+    /**
+     * Pixel to ARGB lookup table for <code>colorModel</code>, or
+     * <code>null</code> if the color model has too many pixel values.
+     */
+    private int[] rgbLookupTable = null;
+    /**
+     * Color model and lookup table of each color model of the descriptor,
+     * stored as <code>Object[] { ColorModel, int[] }</code> and keyed by
+     * <code>BpiImageMetadata</code>, so that images alternating between
+     * color models do not rebuild them.
+     * Entries go away with the metadata, e.g. when dropped in forward-only
+     * mode.
+     */
+    private Map colorModelCache = new WeakHashMap();
+    /**
+     * Lookup tables derived from <code>rgbLookupTable</code>: premultiplied
+     * ARGB, and data elements of <code>elementLookupColorModel</code>.
+     */
+    private int[] preLookupTable = null;
+    private int[] elementLookupTable = null;
+    private ColorModel elementLookupColorModel = null;
+    /**
+     * Destination type meaning the destination uses the raw color model.
+     */
+    static private final int TYPE_RAW = -1;
+    /**
+     * Descriptor key of inputs read without a descriptor, or with the one
+     * of their container.
+     * @see #getDescriptorKey
+     */
+    static final Object NO_DESCRIPTOR = new Object();
+
+    /**
+     * Whether the descriptor, if any, comes from the input itself rather than
+     * having been provided to <code>setInput</code>.
+     */
+    private boolean descriptorFromInput = true;
+    /**
+     * Version of the descriptor file the descriptor was read from, or
+     * <code>null</code>.
+     * @see #getDescriptorKey
+     */
+    private BpiFileKey descriptorFileKey = null;
+    /**
+     * Offsets and color models shared with other readers of the same file,
+     * or <CODE>null</CODE> if the input cannot be shared.
+     * @see BpiOffsetIndexCache
+     */
+    private BpiOffsetIndexCache.Index sharedIndex = null;
+
+    /**
+     * Size of the virtual tiles, or <CODE>0</CODE> if images are not tiled.
+     * @see #setTileSize
+     */
+    private int tileWidth = 0;
+    private int tileHeight = 0;
+
     /** Creates a new instance of BpiImageReader */
     public BpiImageReader() {
 	this(null);
@@ -115,17 +276,36 @@ public class BpiImageReader extends ImageReader {
 
     public void setInput (Object input, BpiStreamMetadata descriptor,
 	boolean seekForwardOnly, boolean ignoreMetadata) {
-	super.setInput(input, seekForwardOnly, ignoreMetadata);
+	// an InputStream is read as it comes, without caching
+	super.setInput(input, seekForwardOnly || (input instanceof InputStream), ignoreMetadata);
 
 	this.descriptor = descriptor;
-	if (input instanceof ImageInputStream) {
+	this.descriptorFromInput = (descriptor == null);
+	this.descriptorFileKey = null;
+	closeStream();
+	if (input == null) {
+	    stream = null;
+	} else if (input instanceof ImageInputStream) {
 	    stream = (ImageInputStream) input;
+	} else if (input instanceof byte[]) {
+	    stream = new BpiByteBufferInputStream(ByteBuffer.wrap((byte[]) input));
+	    streamOwned = true;
+	} else if (input instanceof ByteBuffer) {
+	    stream = new BpiByteBufferInputStream((ByteBuffer) input);
+	    streamOwned = true;
+	} else if (input instanceof InputStream) {
+	    stream = new BpiForwardInputStream((InputStream) input);
+	    streamOwned = true;
 	} else {
 	    try {
 		stream = ImageIO.createImageInputStream(input);
 	    } catch (IOException ioe) {
+		stream = null;
+	    }
+	    if (stream == null) {
 		throw new IllegalArgumentException("Can't create ImageInputStream from input");
 	    }
+	    streamOwned = true;
 	}
 	resetStreamSettings();
     }
@@ -135,20 +315,21 @@ public class BpiImageReader extends ImageReader {
     }
 
     public IIOMetadata getStreamMetadata() throws IOException {
+	readStreamHeader();
 	if (descriptor == null) {
 	    BpiStreamMetadata desc = null;
+	    BpiFileKey fileKey = null;
 	    if (input instanceof File) {
 		File file = BpiCodec.getDescriptorFile((File) input);
-		if (file.exists()) {
-		    desc = BpiCodec.readDescriptor(file);
+		desc = BpiDescriptorCache.getDescriptor(file);
+		if (desc != null) {
+		    fileKey = BpiFileKey.forFile(file);
 		}
 	    } else if (input instanceof URL) {
 		URL url = (URL) input;
 		if ((url.getQuery() == null) && (url.getRef() == null)) {
 		    desc = BpiCodec.readDescriptor(BpiCodec.getDescriptorURL(url));
 		}
-	    } else {
-		throw new IllegalArgumentException("Only ImageInputStreams are supported.");
 	    }
 	    if (desc == null) {
 		desc = new BpiStreamMetadata();
@@ -156,17 +337,40 @@ public class BpiImageReader extends ImageReader {
 		    desc = null;
 		}
 	    }
-	    descriptor = desc;
+	    if (desc != null) {
+		// offsets learned so far lead to color models, not rasters
+		descriptor = desc;
+		descriptorFileKey = fileKey;
+		resetOffsets();
+		attachSharedIndex();
+	    }
 	}
 	return descriptor;
     }
 
+    /**
+     * Returns what identifies the descriptor images are read with, for
+     * {@link BpiImageCache}: the version of the descriptor file it was read
+     * from, the descriptor itself if it was given to <code>setInput</code>,
+     * or <code>NO_DESCRIPTOR</code> if there is none or if the input is a
+     * container, which holds its own; <code>null</code> if the descriptor
+     * cannot be identified.
+     */
+    Object getDescriptorKey() throws IOException {
+	readStreamHeader();
+	if ((container != null) || (descriptor == null)) {
+	    return NO_DESCRIPTOR;
+	}
+	return descriptorFromInput ? descriptorFileKey : descriptor;
+    }
+
     public int getNumImages (boolean allowSearch) throws IOException {
 	if (input == null)
 	    throw new IllegalStateException("Input not set.");
 	if (seekForwardOnly && allowSearch)
 	    throw new IllegalStateException("seekForwardOnly and allowSearch are both set to true.");
 
+	readStreamHeader();
 	if (numImages > 0)
 	    return numImages;
 
@@ -180,32 +384,176 @@ public class BpiImageReader extends ImageReader {
 	}
 
 	numImages = locateImage(Integer.MAX_VALUE) + 1;
+	publishSharedIndex();
 	return numImages;
     }
 
     private void readImageHeader (int imageIndex) throws IOException {
+	if ((currentRaster >= 0) && (imageDataPosition >= 0)
+	    && (currentRaster == ((descriptor != null) ? descriptor.getImageRaster(imageIndex) : imageIndex))) {
+	    // header already known, go straight to the pixels
+	    seekBits(imageDataPosition);
+	    currentIndex = imageIndex;
+	    return;
+	}
 	if (imageIndex != locateImage(imageIndex)) {
 	    throw new IndexOutOfBoundsException("imageIndex > number of images");
 	}
 	try {
 	    currentIndex = -1;
+	    currentRaster = -1;
+	    BpiImageMetadata rasterMetadata = imageMetadata;
+	    int rasterIndex = imageIndex;
 	    if (descriptor == null) {
-		imageMetadata = readImageMetadata();
+		imageMetadata = rasterMetadata = readImageMetadata();
+	    } else {
+		rasterIndex = descriptor.getImageRaster(imageIndex);
+		rasterMetadata = (BpiImageMetadata) colorModels.get(descriptor.getColorModel(rasterIndex, 0));
 	    }
+	    rasterDecoded = false;
+	    tileOffsets = null;
+	    this.rasterMetadata = rasterMetadata;
 	    imageSize = BpiCodec.readRasterSize(stream);
+	    rowStride = (long) imageSize.width * rasterMetadata.bitsPerPixel;
+	    if (isContainerFlagSet(BpiImageFormat.CONTAINER_TILED_RASTERS)) {
+		// tiles are only decoded when needed
+		rasterTileSize = BpiCodec.readRasterSize(stream);
+		int numTiles = getNumTiles(imageSize.width, rasterTileSize.width)
+		    * getNumTiles(imageSize.height, rasterTileSize.height);
+		long[] offsets = new long[numTiles];
+		for (int i = 0; i < numTiles; i++) {
+		    offsets[i] = stream.readBits(BpiImageFormat.TILE_OFFSET_SIZE);
+		}
+		imageDataPosition = (stream.getStreamPosition() << 3) + stream.getBitOffset();
+		if (isContainerFlagSet(BpiImageFormat.CONTAINER_ALIGNED_ROWS)) {
+		    imageDataPosition = BpiCodec.alignBits(imageDataPosition);
+		}
+		for (int i = 0; i < numTiles; i++) {
+		    offsets[i] += imageDataPosition;
+		}
+		tileOffsets = offsets;
+		// the end of the last tile is only known once it is decoded
+		rasterEnd = -1;
+		currentRaster = rasterIndex;
+		currentIndex = imageIndex;
+		return;
+	    }
+	    int compression = BpiImageFormat.COMPRESSION_NONE;
+	    if (isContainerFlagSet(BpiImageFormat.CONTAINER_COMPRESSED_RASTERS)) {
+		compression = (int) stream.readBits(BpiImageFormat.RASTER_COMPRESSION_SIZE);
+	    }
+	    imageDataPosition = (stream.getStreamPosition() << 3) + stream.getBitOffset();
+	    int numPixels = imageSize.width * imageSize.height;
+	    if (compression == BpiImageFormat.COMPRESSION_NONE) {
+		if (isContainerFlagSet(BpiImageFormat.CONTAINER_ALIGNED_ROWS)) {
+		    imageDataPosition = BpiCodec.alignBits(imageDataPosition);
+		    rowStride = BpiCodec.alignBits(rowStride);
+		}
+		rasterEnd = imageDataPosition + imageSize.height * rowStride;
+	    } else {
+		if ((decodedPixels == null) || (decodedPixels.length < numPixels)) {
+		    decodedPixels = new int[numPixels];
+		}
+		readCompressedPixels(compression, decodedPixels, imageSize.width, imageSize.height);
+		rasterDecoded = true;
+		rasterEnd = (stream.getStreamPosition() << 3) + stream.getBitOffset();
+	    }
+	    currentRaster = rasterIndex;
 	    currentIndex = imageIndex;
 	} catch (EOFException eofe) {
 	    throw new IndexOutOfBoundsException("imageIndex > number of images");
 	}
     }
 
+    private boolean isContainerFlagSet (int flag) {
+	return (container != null) && ((container.flags & flag) != 0);
+    }
+
+    static private int getNumTiles (int size, int tileSize) {
+	return (size + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * Decodes compressed pixels of the raster of the last read image.
+     */
+    private void readCompressedPixels (int compression, int[] pixels, int width, int height) throws IOException {
+	switch (compression) {
+	    case BpiImageFormat.COMPRESSION_RLE:
+		BpiCodec.readRunLength(stream, pixels, width * height, rasterMetadata.bitsPerPixel);
+		break;
+	    case BpiImageFormat.COMPRESSION_PREDICTIVE:
+		BpiCodec.readPredictive(stream, pixels, width, height, BpiCodec.getStoredSampleSizes(rasterMetadata));
+		break;
+	    default:
+		throw new IIOException("Unsupported raster compression: " + compression);
+	}
+    }
+
+    /**
+     * Decodes a tile of the raster of the last read image, stored by tiles,
+     * on its own.
+     *
+     * @param tileIndex the index of the tile, row of tiles after row of tiles.
+     * @param pixels the array receiving the pixels of the tile, one row
+     *	after the other.
+     * @return the bounds of the tile in the raster.
+     */
+    private Rectangle readRasterTile (int tileIndex, int[] pixels) throws IOException {
+	int numXTiles = getNumTiles(imageSize.width, rasterTileSize.width);
+	int x = (tileIndex % numXTiles) * rasterTileSize.width;
+	int y = (tileIndex / numXTiles) * rasterTileSize.height;
+	int width = Math.min(rasterTileSize.width, imageSize.width - x);
+	int height = Math.min(rasterTileSize.height, imageSize.height - y);
+	int bitsPerPixel = rasterMetadata.bitsPerPixel;
+
+	seekBits(tileOffsets[tileIndex]);
+	int compression = BpiImageFormat.COMPRESSION_NONE;
+	if (isContainerFlagSet(BpiImageFormat.CONTAINER_COMPRESSED_RASTERS)) {
+	    compression = (int) stream.readBits(BpiImageFormat.RASTER_COMPRESSION_SIZE);
+	}
+	if (compression == BpiImageFormat.COMPRESSION_NONE) {
+	    long start = (stream.getStreamPosition() << 3) + stream.getBitOffset();
+	    long stride = (long) width * bitsPerPixel;
+	    if (isContainerFlagSet(BpiImageFormat.CONTAINER_ALIGNED_ROWS)) {
+		stride = BpiCodec.alignBits(stride);
+	    }
+	    for (int row = 0; row < height; row++) {
+		seekBits(start + row * stride);
+		readPixels(pixels, row * width, width, bitsPerPixel);
+	    }
+	} else {
+	    readCompressedPixels(compression, pixels, width, height);
+	}
+	return new Rectangle(x, y, width, height);
+    }
+
+    /**
+     * Decodes every tile of the raster of the last read image, stored by
+     * tiles, into <code>decodedPixels</code>.
+     */
+    private void decodeRasterTiles() throws IOException {
+	int numPixels = imageSize.width * imageSize.height;
+	if ((decodedPixels == null) || (decodedPixels.length < numPixels)) {
+	    decodedPixels = new int[numPixels];
+	}
+	int[] tile = new int[rasterTileSize.width * rasterTileSize.height];
+	for (int i = 0; i < tileOffsets.length; i++) {
+	    Rectangle bounds = readRasterTile(i, tile);
+	    for (int row = 0; row < bounds.height; row++) {
+		System.arraycopy(tile, row * bounds.width,
+		    decodedPixels, (bounds.y + row) * imageSize.width + bounds.x, bounds.width);
+	    }
+	}
+	rasterDecoded = true;
+    }
+
     private Dimension getDimension (int imageIndex) throws IOException {
 	checkIndex(imageIndex);
 	int rasterIndex = imageIndex;
 	if (descriptor != null) {
 	    rasterIndex = descriptor.getImageRaster(imageIndex);
 	}
-	if (rasterIndex != currentIndex) {
+	if (rasterIndex != currentRaster) {
 	    readImageHeader(imageIndex);
 	}
 	return imageSize;
@@ -213,6 +561,8 @@ public class BpiImageReader extends ImageReader {
 
     public IIOMetadata getImageMetadata (int imageIndex) throws IOException {
 	checkIndex(imageIndex);
+	// the descriptor of a container is only known once its header is read
+	readStreamHeader();
 
 	if (descriptor != null) {
 	    // no need to read until the image raster, just read until the
@@ -250,15 +600,175 @@ public class BpiImageReader extends ImageReader {
 	// index is checked in getImageMetadata and getDimension
 	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
 	Dimension d = getDimension(imageIndex);
-	ColorModel cm = imageMetadata.createCompatibleColorModel();
+	ColorModel cm = getColorModel(imageMetadata);
 	return new ImageTypeSpecifier(cm, cm.createCompatibleSampleModel(d.width, d.height));
     }
 
+    /**
+     * Sets the size of the virtual tiles images are split into.
+     * Any region of a BPI raster can be decoded without reading the whole
+     * raster, so tiles are decoded on their own by {@link #readTile} and
+     * {@link #readTileRaster}. When no size is set, rasters of containers
+     * stored by tiles are split into their own tiles.
+     *
+     * @param tileWidth the width of the tiles, or <code>0</code> if images
+     *	should not be tiled.
+     * @param tileHeight the height of the tiles, or <code>0</code> if images
+     *	should not be tiled.
+     */
+    public void setTileSize (int tileWidth, int tileHeight) {
+	if ((tileWidth < 0) || (tileHeight < 0) || ((tileWidth == 0) != (tileHeight == 0))) {
+	    throw new IllegalArgumentException("Tile width and height must both be > 0, or both be 0.");
+	}
+	this.tileWidth = tileWidth;
+	this.tileHeight = tileHeight;
+    }
+
+    public boolean isImageTiled (int imageIndex) throws IOException {
+	return (getTileWidth(imageIndex) < getWidth(imageIndex))
+	    || (getTileHeight(imageIndex) < getHeight(imageIndex));
+    }
+
+    public int getTileWidth (int imageIndex) throws IOException {
+	// index is checked in getWidth
+	int width = getWidth(imageIndex);
+	Dimension tileSize = getTileSize(imageIndex);
+	return (tileSize != null) ? Math.min(tileSize.width, width) : width;
+    }
+
+    public int getTileHeight (int imageIndex) throws IOException {
+	// index is checked in getHeight
+	int height = getHeight(imageIndex);
+	Dimension tileSize = getTileSize(imageIndex);
+	return (tileSize != null) ? Math.min(tileSize.height, height) : height;
+    }
+
+    /**
+     * Returns the size of the tiles of an image: the size set with
+     * {@link #setTileSize}, else the size of the tiles its raster is stored
+     * by, or <code>null</code> if it is not tiled.
+     */
+    private Dimension getTileSize (int imageIndex) throws IOException {
+	if (tileWidth > 0) {
+	    return new Dimension(tileWidth, tileHeight);
+	}
+	if (!isContainerFlagSet(BpiImageFormat.CONTAINER_TILED_RASTERS)) {
+	    return null;
+	}
+	readImageHeader(imageIndex);
+	return rasterTileSize;
+    }
+
+    public boolean canReadRaster() {
+	return true;
+    }
+
+    public Raster readRaster (int imageIndex, ImageReadParam param) throws IOException {
+	checkIndex(imageIndex);
+	Dimension d = getDimension(imageIndex);
+	Rectangle region = new Rectangle(d);
+	if (param != null) {
+	    Rectangle sourceRegion = param.getSourceRegion();
+	    if ((param.getSourceXSubsampling() != 1) || (param.getSourceYSubsampling() != 1)
+		|| (param.getSourceBands() != null)) {
+		return read(imageIndex, param).getRaster();
+	    }
+	    if (sourceRegion != null) {
+		region = region.intersection(sourceRegion);
+		if (region.isEmpty()) {
+		    throw new IllegalArgumentException("Source region does not intersect the image.");
+		}
+	    }
+	}
+	clearAbortRequest();
+	processImageStarted(imageIndex);
+	WritableRaster raster = readRegion(imageIndex, region);
+	processImageComplete();
+	return raster.createTranslatedChild(0, 0);
+    }
+
+    public BufferedImage readTile (int imageIndex, int tileX, int tileY) throws IOException {
+	checkIndex(imageIndex);
+	WritableRaster raster = readRegion(imageIndex, getTileBounds(imageIndex, tileX, tileY));
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	ColorModel cm = imageMetadata.createCompatibleColorModel();
+	return new BufferedImage(cm, raster.createWritableTranslatedChild(0, 0), cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Decodes a tile of an image, without reading the rest of the raster.
+     * The returned raster is located at the tile position in the image;
+     * tiles on the right and bottom edges are clipped to the image bounds.
+     */
+    public Raster readTileRaster (int imageIndex, int tileX, int tileY) throws IOException {
+	checkIndex(imageIndex);
+	return readRegion(imageIndex, getTileBounds(imageIndex, tileX, tileY));
+    }
+
+    /**
+     * Returns the bounds of a tile, clipped to the image bounds.
+     */
+    private Rectangle getTileBounds (int imageIndex, int tileX, int tileY) throws IOException {
+	int width = getWidth(imageIndex);
+	int height = getHeight(imageIndex);
+	int tileWidth = getTileWidth(imageIndex);
+	int tileHeight = getTileHeight(imageIndex);
+	int numXTiles = (width + tileWidth - 1) / tileWidth;
+	int numYTiles = (height + tileHeight - 1) / tileHeight;
+	if ((tileX < 0) || (tileY < 0) || (tileX >= numXTiles) || (tileY >= numYTiles)) {
+	    throw new IllegalArgumentException("Tile index out of bounds.");
+	}
+	Rectangle bounds = new Rectangle(tileX * tileWidth, tileY * tileHeight, tileWidth, tileHeight);
+	return bounds.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Returns the raw image type, followed by <code>TYPE_INT_ARGB</code>,
+     * <code>TYPE_INT_ARGB_PRE</code>, <code>TYPE_USHORT_565_RGB</code> for
+     * opaque images, and, for images of at most 8 bits per pixel, an 8-bit
+     * indexed type whose palette holds every color of the image, so that
+     * images are never quantized.
+     */
     public Iterator getImageTypes (int imageIndex) throws IOException {
 	// index is checked in getRawImageType
+	ImageTypeSpecifier rawType = getRawImageType(imageIndex);
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	List types = new ArrayList();
+	types.add(rawType);
+	// read() has a specialized loop for each of these types
+	types.add(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB));
+	types.add(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB_PRE));
+	if (rawType.getColorModel().getTransparency() == Transparency.OPAQUE) {
+	    types.add(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_USHORT_565_RGB));
+	}
+	if (imageMetadata.bitsPerPixel <= 8) {
+	    types.add(getIndexedImageType(rawType.getColorModel(), imageMetadata.bitsPerPixel));
+	}
+	return types.iterator();
+    }
 
-	// TODO: return other compatible color models
-	return Arrays.asList(new Object[] { getRawImageType(imageIndex) }).iterator();
+    /**
+     * Returns the type of <code>TYPE_BYTE_INDEXED</code> images with a
+     * palette entry for each pixel value of a color model.
+     */
+    static private ImageTypeSpecifier getIndexedImageType (ColorModel cm, int bitsPerPixel) {
+	int size = 1 << bitsPerPixel;
+	if (cm instanceof IndexColorModel) {
+	    size = Math.min(size, ((IndexColorModel) cm).getMapSize());
+	}
+	// entries past the pixel values are never used
+	byte[] r = new byte[256];
+	byte[] g = new byte[256];
+	byte[] b = new byte[256];
+	byte[] a = new byte[256];
+	for (int i = 0; i < size; i++) {
+	    int argb = cm.getRGB(i);
+	    a[i] = (byte) (argb >>> 24);
+	    r[i] = (byte) (argb >> 16);
+	    g[i] = (byte) (argb >> 8);
+	    b[i] = (byte) argb;
+	}
+	return ImageTypeSpecifier.createIndexed(r, g, b, a, 8, DataBuffer.TYPE_BYTE);
     }
 
     public BufferedImage read (int imageIndex, ImageReadParam param) throws IOException {
@@ -271,53 +781,852 @@ public class BpiImageReader extends ImageReader {
 
 	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
 	Dimension d = getDimension(imageIndex);
+	int bitsPerPixel = imageMetadata.bitsPerPixel;
 
-	BufferedImage image = getDestination(param, getImageTypes(imageIndex), d.width, d.height);
-	Rectangle srcRegion = new Rectangle();
-	Rectangle dstRegion = new Rectangle();
+	// a destination set in the param is used as is, without querying
+	// (and allocating) the image types.
+	BufferedImage image = (param != null) ? param.getDestination() : null;
+	if (isDefaultReadParam(param)) {
+	    // the raw type, without building the list of image types
+	    ColorModel rawCM = getColorModel(imageMetadata);
+	    image = new BufferedImage(rawCM, rawCM.createCompatibleWritableRaster(d.width, d.height),
+		rawCM.isAlphaPremultiplied(), null);
+	} else if (image == null) {
+	    image = getDestination(param, getImageTypes(imageIndex), d.width, d.height);
+	}
 	computeRegions(param, d.width, d.height, image, srcRegion, dstRegion);
 
-	int subsamplingX = (param != null) ? param.getSourceXSubsampling() : 1;
-	int subsamplingY = (param != null) ? param.getSourceYSubsampling() : 1;
-	ColorModel cm = imageMetadata.createCompatibleColorModel();
+	int periodX = (param != null) ? param.getSourceXSubsampling() : 1;
+	int periodY = (param != null) ? param.getSourceYSubsampling() : 1;
+	ColorModel cm = getColorModel(imageMetadata);
+	WritableRaster raster = image.getRaster();
+	ColorModel dstCM = image.getColorModel();
+	SampleModel dstSM = raster.getSampleModel();
+	int dstType = ((dstCM == cm) || dstCM.equals(cm)) ? TYPE_RAW : image.getType();
+	Object dstData = null;
+	switch (dstType) {
+	    case BufferedImage.TYPE_INT_ARGB:
+	    case BufferedImage.TYPE_INT_ARGB_PRE:
+		dstData = ((DataBufferInt) raster.getDataBuffer()).getData();
+		break;
+	    case BufferedImage.TYPE_USHORT_565_RGB:
+	    case BufferedImage.TYPE_BYTE_INDEXED:
+		// only with a lookup table, per pixel conversions use setRGB
+		if (getElementLookupTable(dstCM) != null) {
+		    dstData = (dstType == BufferedImage.TYPE_BYTE_INDEXED)
+			? (Object) ((DataBufferByte) raster.getDataBuffer()).getData()
+			: (Object) ((DataBufferUShort) raster.getDataBuffer()).getData();
+		}
+		break;
+	}
+
+	int span = (dstRegion.width - 1) * periodX + 1;
+	int[] row = getRowBuffer(span);
+	int[] rgb = getRGBBuffer(dstRegion.width);
+
+	// bands of rows are only reported when someone listens
+	boolean notifyUpdates = (updateListeners != null);
+	int bandHeight = (param instanceof BpiImageReadParam)
+	    ? ((BpiImageReadParam) param).getUpdateBandHeight()
+	    : BpiImageReadParam.DEFAULT_UPDATE_BAND_HEIGHT;
+	int bandStart = dstRegion.y;
+	int[] updateBands = null;
+	if (notifyUpdates) {
+	    updateBands = (param != null) ? param.getDestinationBands() : null;
+	    if (updateBands == null) {
+		updateBands = new int[raster.getNumBands()];
+		for (int b = 0; b < updateBands.length; b++) {
+		    updateBands[b] = b;
+		}
+	    }
+	}
 
 	processImageStarted(imageIndex);
+	if (notifyUpdates) {
+	    processPassStarted(image, 0, 0, 0, dstRegion.x, dstRegion.y, 1, 1, updateBands);
+	}
 
-	for (int srcY = srcRegion.y, dstY = dstRegion.y; srcY < srcRegion.y + srcRegion.height; srcY++) {
+	for (int dstY = dstRegion.y, srcY = srcRegion.y; dstY < dstRegion.y + dstRegion.height; dstY++, srcY += periodY) {
 	    if (abortRequested()) {
 		processReadAborted();
 		return image;
 	    }
-	    if ((subsamplingY == 1) || ((srcY % subsamplingY) == 0)) {
-		// read one row
-		for (int srcX = srcRegion.x, dstX = dstRegion.x; srcX < srcRegion.x + srcRegion.width; srcX++) {
-		    int pixel = (int) stream.readBits(imageMetadata.bitsPerPixel);
-		    if ((subsamplingX == 1) || ((srcX % subsamplingX) == 0)) {
-			// process pixel
-			int rgb = cm.getRGB(pixel);
-			image.setRGB(dstX++, dstY, rgb);
-		    }
+	    readPixelsAt((long) srcY * d.width + srcRegion.x, row, 0, span, bitsPerPixel);
+	    if (periodX != 1) {
+		for (int i = 1; i < dstRegion.width; i++) {
+		    row[i] = row[i * periodX];
+		}
+	    }
+	    int offset = 0;
+	    if (dstData != null) {
+		int x = dstRegion.x - raster.getSampleModelTranslateX();
+		int y = dstY - raster.getSampleModelTranslateY();
+		offset = raster.getDataBuffer().getOffset() + ((dstSM instanceof ComponentSampleModel)
+		    ? ((ComponentSampleModel) dstSM).getOffset(x, y)
+		    : ((SinglePixelPackedSampleModel) dstSM).getOffset(x, y));
+	    }
+	    if (dstType == TYPE_RAW) {
+		setRawPixels(raster, dstRegion.x, dstY, dstRegion.width, row);
+	    } else if (dstData == null) {
+		toARGB(row, rgb, 0, dstRegion.width);
+		image.setRGB(dstRegion.x, dstY, dstRegion.width, 1, rgb, 0, dstRegion.width);
+	    } else if (dstType == BufferedImage.TYPE_INT_ARGB) {
+		toARGB(row, (int[]) dstData, offset, dstRegion.width);
+	    } else if (dstType == BufferedImage.TYPE_INT_ARGB_PRE) {
+		toARGBPre(row, (int[]) dstData, offset, dstRegion.width);
+	    } else if (dstType == BufferedImage.TYPE_USHORT_565_RGB) {
+		int[] lut = elementLookupTable;
+		short[] data = (short[]) dstData;
+		for (int i = 0; i < dstRegion.width; i++) {
+		    data[offset + i] = (short) lut[row[i]];
 		}
-		dstY++;
 	    } else {
-		// skip the row
-		skipBits(d.width * imageMetadata.bitsPerPixel);
+		int[] lut = elementLookupTable;
+		byte[] data = (byte[]) dstData;
+		for (int i = 0; i < dstRegion.width; i++) {
+		    data[offset + i] = (byte) lut[row[i]];
+		}
+	    }
+	    if (notifyUpdates && ((dstY + 1 - bandStart == bandHeight)
+				  || (dstY + 1 == dstRegion.y + dstRegion.height))) {
+		processImageUpdate(image, dstRegion.x, bandStart, dstRegion.width, dstY + 1 - bandStart,
+		    1, 1, updateBands);
+		bandStart = dstY + 1;
+	    }
+	    processImageProgress((float) (dstY - dstRegion.y + 1) / dstRegion.height);
+	}
+
+	if (notifyUpdates) {
+	    processPassComplete(image);
+	}
+	processImageComplete();
+	return image;
+    }
+
+    /**
+     * Reads a whole image as non-premultiplied ARGB pixels, into an array
+     * provided by the caller.
+     * Once the image has been read a first time, reading it again does not
+     * allocate anything.
+     *
+     * @param imageIndex the index of the image.
+     * @param argb the array receiving the pixels.
+     * @param offset the index, in <code>argb</code>, of the top-left pixel.
+     * @param scanline the distance, in <code>argb</code>, between two rows.
+     */
+    public void readInto (int imageIndex, int[] argb, int offset, int scanline) throws IOException {
+	checkIndex(imageIndex);
+	clearAbortRequest();
+
+	readImageHeader(imageIndex);
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	Dimension d = getDimension(imageIndex);
+	if ((offset < 0) || (scanline < d.width)
+	    || (offset + (long) (d.height - 1) * scanline + d.width > argb.length)) {
+	    throw new IllegalArgumentException("argb is too small to hold the image.");
+	}
+	int bitsPerPixel = imageMetadata.bitsPerPixel;
+	getColorModel(imageMetadata);
+	int[] row = getRowBuffer(d.width);
+
+	processImageStarted(imageIndex);
+
+	for (int y = 0; y < d.height; y++) {
+	    if (abortRequested()) {
+		processReadAborted();
+		return;
+	    }
+	    // rows are consecutive, no need to go back
+	    readPixelsAt((long) y * d.width, row, 0, d.width, bitsPerPixel);
+	    toARGB(row, argb, offset + y * scanline, d.width);
+	    processImageProgress((float) (y + 1) / d.height);
+	}
+
+	processImageComplete();
+    }
+
+    /**
+     * Reads a band of rows of an image as non-premultiplied ARGB pixels,
+     * into an array provided by the caller.
+     * A consumer can read an image band after band, as it processes them,
+     * so that only one band is ever decoded ahead and held in memory.
+     * Reading the bands of an image in increasing order only moves forward
+     * in the input, and also works on forward-only inputs.
+     * Listeners are not notified.
+     *
+     * @param imageIndex the index of the image.
+     * @param y the first row of the band.
+     * @param numRows the number of rows of the band.
+     * @param argb the array receiving the pixels.
+     * @param offset the index, in <code>argb</code>, of the first pixel of
+     *	the band.
+     * @param scanline the distance, in <code>argb</code>, between two rows.
+     */
+    public void readRowsInto (int imageIndex, int y, int numRows, int[] argb, int offset, int scanline)
+	throws IOException {
+	checkIndex(imageIndex);
+	// the header is only read if needed: going back to the start of the
+	// pixels is not possible on forward-only inputs
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	Dimension d = getDimension(imageIndex);
+	if ((y < 0) || (numRows < 0) || (y + numRows > d.height)) {
+	    throw new IllegalArgumentException("Rows out of the image bounds.");
+	}
+	if ((offset < 0) || (scanline < d.width)
+	    || ((numRows > 0) && (offset + (long) (numRows - 1) * scanline + d.width > argb.length))) {
+	    throw new IllegalArgumentException("argb is too small to hold the rows.");
+	}
+	int bitsPerPixel = imageMetadata.bitsPerPixel;
+	getColorModel(imageMetadata);
+	int[] row = getRowBuffer(d.width);
+
+	for (int i = 0; i < numRows; i++) {
+	    // rows are consecutive, no need to go back
+	    readPixelsAt((long) (y + i) * d.width, row, 0, d.width, bitsPerPixel);
+	    toARGB(row, argb, offset + i * scanline, d.width);
+	}
+    }
+
+    /**
+     * Returns an iterator reading the images of the input one after the
+     * other, as <code>IIOImage</code>s holding the image and its metadata.
+     * Unlike {@link #readAll(Iterator)}, an image is only read when
+     * requested, and the input is read in a single pass: each image is
+     * read from where the previous one ends, and color models are only
+     * built once.
+     * The iteration starts at the lowest allowed image index. I/O errors
+     * are reported as <code>IllegalStateException</code>s caused by the
+     * <code>IOException</code>.
+     *
+     * @param param the param used to read every image, or <code>null</code>.
+     * @return an iterator of <code>IIOImage</code>s.
+     */
+    public Iterator readImages (ImageReadParam param) {
+	return readImages(param, minIndex, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator reading a range of images, see
+     * {@link #readImages(ImageReadParam)}.
+     * Disjoint ranges of the same input can be read concurrently by
+     * readers returned by {@link #createSibling()}.
+     *
+     * @param param the param used to read every image, or <code>null</code>.
+     * @param fromIndex the index of the first image.
+     * @param toIndex the index following the last image; the iteration
+     *	also stops at the end of the input.
+     * @return an iterator of <code>IIOImage</code>s.
+     */
+    public Iterator readImages (final ImageReadParam param, final int fromIndex, final int toIndex) {
+	if (input == null)
+	    throw new IllegalStateException("Input not set.");
+	if (fromIndex < minIndex)
+	    throw new IndexOutOfBoundsException("fromIndex < minIndex");
+	return new Iterator() {
+	    private int imageIndex = fromIndex;
+	    /** Whether the image at <code>imageIndex</code> is known to exist. */
+	    private boolean located = false;
+	    private boolean done = false;
+
+	    public boolean hasNext() {
+		if (imageIndex >= toIndex) {
+		    return false;
+		}
+		if (!located && !done) {
+		    try {
+			// read() then goes straight to the pixels
+			readImageHeader(imageIndex);
+			located = true;
+		    } catch (IndexOutOfBoundsException ioobe) {
+			located = false;
+		    } catch (IOException ioe) {
+			throw readFailed(ioe);
+		    }
+		    done = !located;
+		}
+		return located;
+	    }
+
+	    public Object next() {
+		if (!hasNext()) {
+		    throw new NoSuchElementException();
+		}
+		try {
+		    BufferedImage image = read(imageIndex, param);
+		    IIOImage result = new IIOImage(image, null, getImageMetadata(imageIndex));
+		    imageIndex++;
+		    located = false;
+		    return result;
+		} catch (IOException ioe) {
+		    throw readFailed(ioe);
+		}
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+
+	    private IllegalStateException readFailed (IOException ioe) {
+		IllegalStateException ise = new IllegalStateException("Unable to read image "
+		    + imageIndex + ": " + ioe.getMessage());
+		ise.initCause(ioe);
+		return ise;
+	    }
+	};
+    }
+
+    /**
+     * Creates a reader on the same input, starting with everything this
+     * reader has learned about it: descriptor, container and the offsets
+     * of the images located so far. Locating an image already located by
+     * this reader therefore does not scan the input again.
+     * The readers are independent and can be used by different threads,
+     * for instance each on its own range of images (see
+     * {@link #readImages(ImageReadParam, int, int)}); calling
+     * {@link #getNumImages getNumImages(true)} first locates every image.
+     *
+     * @return a new reader.
+     * @throws IllegalStateException if the input is a stream, which
+     *	cannot be read by several readers.
+     */
+    public BpiImageReader createSibling() {
+	if (input == null)
+	    throw new IllegalStateException("Input not set.");
+	if ((input instanceof ImageInputStream) || (input instanceof InputStream))
+	    throw new IllegalStateException("A stream input cannot be shared by several readers.");
+
+	BpiImageReader sibling = new BpiImageReader(originatingProvider);
+	sibling.setInput(input, descriptorFromInput ? null : descriptor, seekForwardOnly, ignoreMetadata);
+	sibling.tileWidth = tileWidth;
+	sibling.tileHeight = tileHeight;
+	if (headerRead) {
+	    sibling.descriptor = descriptor;
+	    sibling.descriptorFileKey = descriptorFileKey;
+	    sibling.container = container;
+	    sibling.streamStart = streamStart;
+	    sibling.headerRead = true;
+	    sibling.sharedIndex = sharedIndex;
+	    sibling.byteOffsets.addAll(byteOffsets);
+	    sibling.bitOffsets.addAll(bitOffsets);
+	    sibling.firstOffset = firstOffset;
+	    sibling.colorModels.addAll(colorModels);
+	    sibling.numImages = numImages;
+	}
+	return sibling;
+    }
+
+    /**
+     * Returns a loader reading the given images in the background, each
+     * with a sibling of this reader. The loader still has to be started,
+     * or its tasks run, see {@link BpiImageLoader}.
+     *
+     * @param imageIndices the indices of the images to read.
+     * @return the loader.
+     */
+    public BpiImageLoader readAsync (int[] imageIndices) {
+	return new BpiImageLoader(this, imageIndices);
+    }
+
+    /**
+     * Reads every image of a raster at once.
+     * When the descriptor associates several color models with a raster,
+     * such as palette variants of a sprite, the raster is only unpacked
+     * once: each row is converted with the lookup table of every color
+     * model in turn.
+     * Progress is reported as for the first image of the raster.
+     *
+     * @param rasterIndex the index of the raster, which is the image index
+     *	when there is no descriptor.
+     * @return the images of the raster, as <code>TYPE_INT_ARGB</code>
+     *	images, in image index order.
+     */
+    public BufferedImage[] readRasterImages (int rasterIndex) throws IOException {
+	readStreamHeader();
+	int firstImage = rasterIndex;
+	int numImages = 1;
+	if (descriptor != null) {
+	    if ((rasterIndex < 0) || (rasterIndex >= descriptor.getNumRasters())) {
+		throw new IndexOutOfBoundsException("rasterIndex out of bounds");
+	    }
+	    firstImage = descriptor.indexOfImage(rasterIndex);
+	    numImages = descriptor.getNumColorModels(rasterIndex);
+	}
+	checkIndex(firstImage);
+	clearAbortRequest();
+
+	ColorModel[] cms = new ColorModel[numImages];
+	int[][] luts = new int[numImages][];
+	int bitsPerPixel = -1;
+	for (int i = 0; i < numImages; i++) {
+	    BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(firstImage + i);
+	    if ((bitsPerPixel >= 0) && (imageMetadata.bitsPerPixel != bitsPerPixel)) {
+		throw new IIOException("Color models of raster " + rasterIndex + " have different depths.");
+	    }
+	    bitsPerPixel = imageMetadata.bitsPerPixel;
+	    // the tables are replaced, never modified, by the next call
+	    cms[i] = getColorModel(imageMetadata);
+	    luts[i] = rgbLookupTable;
+	}
+
+	readImageHeader(firstImage);
+	Dimension d = getDimension(firstImage);
+	BufferedImage[] images = new BufferedImage[numImages];
+	int[][] data = new int[numImages][];
+	for (int i = 0; i < numImages; i++) {
+	    images[i] = new BufferedImage(d.width, d.height, BufferedImage.TYPE_INT_ARGB);
+	    data[i] = ((DataBufferInt) images[i].getRaster().getDataBuffer()).getData();
+	}
+	int[] row = getRowBuffer(d.width);
+
+	processImageStarted(firstImage);
+
+	for (int y = 0; y < d.height; y++) {
+	    if (abortRequested()) {
+		processReadAborted();
+		return images;
+	    }
+	    // rows are consecutive, no need to go back
+	    readPixelsAt((long) y * d.width, row, 0, d.width, bitsPerPixel);
+	    int offset = y * d.width;
+	    for (int i = 0; i < numImages; i++) {
+		int[] lut = luts[i];
+		int[] argb = data[i];
+		if (lut != null) {
+		    for (int x = 0; x < d.width; x++) {
+			argb[offset + x] = lut[row[x]];
+		    }
+		} else {
+		    ColorModel cm = cms[i];
+		    for (int x = 0; x < d.width; x++) {
+			argb[offset + x] = cm.getRGB(row[x]);
+		    }
+		}
+	    }
+	    processImageProgress((float) (y + 1) / d.height);
+	}
+
+	processImageComplete();
+	return images;
+    }
+
+    /**
+     * Returns the color model of an image, creating it only when the
+     * metadata changed since the last call.
+     */
+    private ColorModel getColorModel (BpiImageMetadata imageMetadata) {
+	if ((colorModelMetadata != null) && colorModelMetadata.isSameColorModel(imageMetadata)) {
+	    // keep the lookup tables, even across inputs
+	    colorModelMetadata = imageMetadata;
+	} else if (imageMetadata != colorModelMetadata) {
+	    colorModelMetadata = imageMetadata;
+	    preLookupTable = null;
+	    elementLookupTable = null;
+	    elementLookupColorModel = null;
+	    Object[] cached = (Object[]) colorModelCache.get(imageMetadata);
+	    if (cached != null) {
+		colorModel = (ColorModel) cached[0];
+		rgbLookupTable = (int[]) cached[1];
+		return colorModel;
+	    }
+	    colorModel = imageMetadata.createCompatibleColorModel();
+	    rgbLookupTable = null;
+	    int bitsPerPixel = imageMetadata.bitsPerPixel;
+	    if (bitsPerPixel <= MAX_LOOKUP_TABLE_BITS) {
+		rgbLookupTable = new int[1 << bitsPerPixel];
+		for (int i = 0; i < rgbLookupTable.length; i++) {
+		    rgbLookupTable[i] = colorModel.getRGB(i);
+		}
+	    }
+	    if (descriptor != null) {
+		// the same metadata is used by every image of the color model
+		colorModelCache.put(imageMetadata, new Object[] { colorModel, rgbLookupTable });
+	    }
+	}
+	return colorModel;
+    }
+
+    /**
+     * Returns a table converting pixels of the current color model to
+     * data elements of another color model, or <code>null</code> if the
+     * current color model has too many pixel values.
+     */
+    private int[] getElementLookupTable (ColorModel dstCM) {
+	if (rgbLookupTable == null) {
+	    return null;
+	}
+	if ((elementLookupTable == null) || !dstCM.equals(elementLookupColorModel)) {
+	    elementLookupTable = new int[rgbLookupTable.length];
+	    Object element = null;
+	    for (int i = 0; i < rgbLookupTable.length; i++) {
+		element = dstCM.getDataElements(rgbLookupTable[i], element);
+		if (element instanceof byte[]) {
+		    elementLookupTable[i] = ((byte[]) element)[0] & 0xFF;
+		} else if (element instanceof short[]) {
+		    elementLookupTable[i] = ((short[]) element)[0] & 0xFFFF;
+		} else {
+		    elementLookupTable[i] = ((int[]) element)[0];
+		}
+	    }
+	    elementLookupColorModel = dstCM;
+	}
+	return elementLookupTable;
+    }
+
+    /**
+     * Converts pixels to premultiplied ARGB, using the current color model.
+     */
+    private void toARGBPre (int[] pixels, int[] argb, int offset, int count) {
+	if (rgbLookupTable != null) {
+	    if (preLookupTable == null) {
+		preLookupTable = new int[rgbLookupTable.length];
+		for (int i = 0; i < preLookupTable.length; i++) {
+		    preLookupTable[i] = premultiply(rgbLookupTable[i]);
+		}
+	    }
+	    int[] lut = preLookupTable;
+	    for (int i = 0; i < count; i++) {
+		argb[offset + i] = lut[pixels[i]];
+	    }
+	} else {
+	    for (int i = 0; i < count; i++) {
+		argb[offset + i] = premultiply(colorModel.getRGB(pixels[i]));
+	    }
+	}
+    }
+
+    static private int premultiply (int argb) {
+	int alpha = argb >>> 24;
+	if (alpha == 0xFF) {
+	    return argb;
+	}
+	int red = (((argb >> 16) & 0xFF) * alpha + 127) / 255;
+	int green = (((argb >> 8) & 0xFF) * alpha + 127) / 255;
+	int blue = ((argb & 0xFF) * alpha + 127) / 255;
+	return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Converts pixels to ARGB, using the current color model.
+     */
+    private void toARGB (int[] pixels, int[] argb, int offset, int count) {
+	int[] lut = rgbLookupTable;
+	if (lut != null) {
+	    for (int i = 0; i < count; i++) {
+		argb[offset + i] = lut[pixels[i]];
+	    }
+	} else {
+	    for (int i = 0; i < count; i++) {
+		argb[offset + i] = colorModel.getRGB(pixels[i]);
+	    }
+	}
+    }
+
+    /**
+     * Stores raw pixels in a raster compatible with the raw color model.
+     */
+    private void setRawPixels (WritableRaster raster, int x, int y, int count, int[] pixels) {
+	SampleModel sm = raster.getSampleModel();
+	if (sm instanceof SinglePixelPackedSampleModel) {
+	    int[] masks = ((SinglePixelPackedSampleModel) sm).getBitMasks();
+	    int[] shifts = ((SinglePixelPackedSampleModel) sm).getBitOffsets();
+	    int numBands = masks.length;
+	    if ((sampleBuffer == null) || (sampleBuffer.length < count * numBands)) {
+		sampleBuffer = new int[count * numBands];
+	    }
+	    for (int i = 0, j = 0; i < count; i++) {
+		for (int b = 0; b < numBands; b++) {
+		    sampleBuffer[j++] = (pixels[i] & masks[b]) >>> shifts[b];
+		}
+	    }
+	    raster.setPixels(x, y, count, 1, sampleBuffer);
+	} else {
+	    raster.setSamples(x, y, count, 1, 0, pixels);
+	}
+    }
+
+    private int[] getRowBuffer (int length) {
+	if ((rowBuffer == null) || (rowBuffer.length < length)) {
+	    rowBuffer = new int[length];
+	}
+	return rowBuffer;
+    }
+
+    private int[] getRGBBuffer (int length) {
+	if ((rgbBuffer == null) || (rgbBuffer.length < length)) {
+	    rgbBuffer = new int[length];
+	}
+	return rgbBuffer;
+    }
+
+    /**
+     * Reads raw pixel values (before color model conversion) of whole rows.
+     *
+     * @param imageIndex the index of the image.
+     * @param y the first row to read.
+     * @param numRows the number of rows to read.
+     * @param pixels the array receiving the pixels, one row after the other.
+     * @param offset the index of the first pixel in <code>pixels</code>.
+     */
+    void readRawRows (int imageIndex, int y, int numRows, int[] pixels, int offset) throws IOException {
+	readImageHeader(imageIndex);
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	Dimension d = getDimension(imageIndex);
+	if ((y < 0) || (numRows < 0) || (y + numRows > d.height)) {
+	    throw new IllegalArgumentException("Rows out of the image bounds.");
+	}
+	int bitsPerPixel = imageMetadata.bitsPerPixel;
+	readPixelsAt((long) y * d.width, pixels, offset, numRows * d.width, bitsPerPixel);
+    }
+
+    /**
+     * Returns a view of the image whose tiles are only decoded when
+     * requested, and then cached.
+     * The returned image reads from the current input, which must not be
+     * changed while the image is in use.
+     * Source regions, subsampling and destination settings are not
+     * supported by the view; when one of them is set, or when the input is
+     * read forward only, the image is read at once.
+     */
+    public RenderedImage readAsRenderedImage (int imageIndex, ImageReadParam param) throws IOException {
+	if (seekForwardOnly || !isDefaultReadParam(param)) {
+	    return super.readAsRenderedImage(imageIndex, param);
+	}
+	checkIndex(imageIndex);
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	Dimension d = getDimension(imageIndex);
+	Dimension tileSize = getTileSize(imageIndex);
+	if (tileSize == null) {
+	    tileSize = new Dimension(BpiTiledImage.DEFAULT_TILE_SIZE, BpiTiledImage.DEFAULT_TILE_SIZE);
+	}
+	return new BpiTiledImage(this, imageIndex, d.width, d.height,
+	    imageMetadata.createCompatibleColorModel(), tileSize.width, tileSize.height,
+	    BpiTiledImage.DEFAULT_MAX_TILES);
+    }
+
+    /**
+     * Decodes a rectangular region of an image, with its raw color model.
+     * Only the rows of the region are read: the stream is positioned at
+     * the first pixel of each row.
+     *
+     * @param imageIndex the index of the image.
+     * @param region the region to decode, within the image bounds.
+     * @param raster the raster receiving the pixels, at the same location
+     *	as the region; it must be compatible with the raw color model.
+     */
+    void readRegion (int imageIndex, Rectangle region, WritableRaster raster) throws IOException {
+	readImageHeader(imageIndex);
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	Dimension d = getDimension(imageIndex);
+	if (!new Rectangle(d).contains(region)) {
+	    throw new IllegalArgumentException("Region out of the image bounds.");
+	}
+	int bitsPerPixel = imageMetadata.bitsPerPixel;
+
+	if ((tileOffsets != null) && !rasterDecoded) {
+	    // only decode the tiles intersecting the region
+	    int numXTiles = getNumTiles(d.width, rasterTileSize.width);
+	    int minTileX = region.x / rasterTileSize.width;
+	    int maxTileX = (region.x + region.width - 1) / rasterTileSize.width;
+	    int minTileY = region.y / rasterTileSize.height;
+	    int maxTileY = (region.y + region.height - 1) / rasterTileSize.height;
+	    int[] tile = new int[rasterTileSize.width * rasterTileSize.height];
+	    int[] row = getRowBuffer(rasterTileSize.width);
+	    for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+		for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+		    Rectangle bounds = readRasterTile(tileY * numXTiles + tileX, tile);
+		    Rectangle part = bounds.intersection(region);
+		    for (int y = part.y; y < part.y + part.height; y++) {
+			System.arraycopy(tile, (y - bounds.y) * bounds.width + part.x - bounds.x,
+			    row, 0, part.width);
+			setRawPixels(raster, part.x, y, part.width, row);
+		    }
+		}
+	    }
+	    return;
+	}
+
+	int[] row = getRowBuffer(region.width);
+	for (int y = region.y; y < region.y + region.height; y++) {
+	    readPixelsAt((long) y * d.width + region.x, row, 0, region.width, bitsPerPixel);
+	    setRawPixels(raster, region.x, y, region.width, row);
+	}
+    }
+
+    /**
+     * Decodes a rectangular region of an image into a new raster, located
+     * at the region position, with its raw color model.
+     */
+    private WritableRaster readRegion (int imageIndex, Rectangle region) throws IOException {
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	ColorModel cm = imageMetadata.createCompatibleColorModel();
+	WritableRaster raster = cm.createCompatibleWritableRaster(region.width, region.height)
+	    .createWritableTranslatedChild(region.x, region.y);
+	readRegion(imageIndex, region, raster);
+	return raster;
+    }
+
+    /**
+     * Reads an image without unpacking its pixels.
+     *
+     * The returned image is backed by a {@link BpiPackedDataBuffer} holding
+     * the raster as it is encoded in the stream, so it only costs the
+     * encoded size in memory; pixels are unpacked when they are accessed.
+     *
+     * @param imageIndex the index of the image.
+     * @return the image, with the raw color model of the image.
+     */
+    public BufferedImage readPacked (int imageIndex) throws IOException {
+	checkIndex(imageIndex);
+	readImageHeader(imageIndex);
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) getImageMetadata(imageIndex);
+	Dimension d = getDimension(imageIndex);
+	int bitsPerPixel = imageMetadata.bitsPerPixel;
+	int size = d.width * d.height;
+
+	processImageStarted(imageIndex);
+	ColorModel cm = imageMetadata.createCompatibleColorModel();
+	DataBuffer db;
+	if (rasterDecoded || (tileOffsets != null) || (rowStride != (long) d.width * bitsPerPixel)) {
+	    // compressed pixels, tiles, or padded rows, have to be packed again
+	    int[] pixels = decodedPixels;
+	    if (!rasterDecoded) {
+		pixels = new int[size];
+		readPixelsAt(0, pixels, 0, size, bitsPerPixel);
+	    }
+	    db = new BpiPackedDataBuffer(cm.getTransferType(), bitsPerPixel, size);
+	    for (int i = 0; i < size; i++) {
+		db.setElem(i, pixels[i]);
+	    }
+	} else {
+	    // the pixels of aligned rows start after the padding of the header
+	    seekBits(imageDataPosition);
+	    int bitOffset = stream.getBitOffset();
+	    long numBits = bitOffset + (long) size * bitsPerPixel;
+	    byte[] data = new byte[(int) ((numBits + 7) >>> 3)];
+	    stream.setBitOffset(0);
+	    stream.readFully(data);
+	    int endBitOffset = (int) (numBits & 7);
+	    if (endBitOffset != 0) {
+		stream.seek(stream.getStreamPosition() - 1);
+		stream.setBitOffset(endBitOffset);
 	    }
-	    processImageProgress((float) (srcY - srcRegion.y + 1) / srcRegion.height);
+	    db = new BpiPackedDataBuffer(cm.getTransferType(), data, bitOffset, bitsPerPixel, size);
 	}
 
+	int[] masks;
+	if (cm instanceof PackedColorModel) {
+	    masks = ((PackedColorModel) cm).getMasks();
+	} else {
+	    masks = new int[] { (1 << bitsPerPixel) - 1 };
+	}
+	SampleModel sm = new BpiPackedSampleModel(cm.getTransferType(), d.width, d.height, bitsPerPixel, masks);
+	WritableRaster raster = Raster.createWritableRaster(sm, db, new Point(0, 0));
+	BufferedImage image = new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
 	processImageComplete();
 	return image;
     }
 
+    /**
+     * Reads consecutive raw pixels of the raster of the last read image,
+     * either from the decoded raster or from the stream, skipping the
+     * padding of byte aligned rows.
+     *
+     * @param pixelIndex the index, in the raster, of the first pixel.
+     */
+    private void readPixelsAt (long pixelIndex, int[] pixels, int offset, int count, int bitsPerPixel)
+	throws IOException {
+	if ((tileOffsets != null) && !rasterDecoded) {
+	    // rows go across tiles
+	    decodeRasterTiles();
+	}
+	if (rasterDecoded) {
+	    System.arraycopy(decodedPixels, (int) pixelIndex, pixels, offset, count);
+	    return;
+	}
+	int width = imageSize.width;
+	if (rowStride == (long) width * bitsPerPixel) {
+	    seekBits(imageDataPosition + pixelIndex * bitsPerPixel);
+	    readPixels(pixels, offset, count, bitsPerPixel);
+	    return;
+	}
+	while (count > 0) {
+	    long y = pixelIndex / width;
+	    int x = (int) (pixelIndex % width);
+	    int n = Math.min(count, width - x);
+	    seekBits(imageDataPosition + y * rowStride + (long) x * bitsPerPixel);
+	    readPixels(pixels, offset, n, bitsPerPixel);
+	    pixelIndex += n;
+	    offset += n;
+	    count -= n;
+	}
+    }
+
+    /**
+     * Reads consecutive raw pixels from the current stream position, in
+     * bulk, leaving the stream just after the last pixel.
+     */
+    private void readPixels (int[] pixels, int offset, int count, int bitsPerPixel) throws IOException {
+	if (count <= 0)
+	    return;
+	int bitOffset = stream.getBitOffset();
+	long numBits = bitOffset + (long) count * bitsPerPixel;
+	if ((stream instanceof BpiByteBufferInputStream)
+	    && (((BpiByteBufferInputStream) stream).array() != null)) {
+	    // unpack straight from the input array
+	    BpiByteBufferInputStream in = (BpiByteBufferInputStream) stream;
+	    long pos = stream.getStreamPosition();
+	    if (pos + ((numBits + 7) >>> 3) > in.length()) {
+		throw new EOFException();
+	    }
+	    BpiCodec.unpackPixels(in.array(), in.arrayOffset() + (int) pos, bitOffset,
+		bitsPerPixel, pixels, offset, count);
+	    seekBits((pos << 3) + numBits);
+	    return;
+	}
+	int numBytes = (int) ((numBits + 7) >>> 3);
+	if ((pixelBuffer == null) || (pixelBuffer.length < numBytes)) {
+	    pixelBuffer = new byte[numBytes];
+	}
+	stream.setBitOffset(0);
+	stream.readFully(pixelBuffer, 0, numBytes);
+	BpiCodec.unpackPixels(pixelBuffer, bitOffset, bitsPerPixel, pixels, offset, count);
+	int endBitOffset = (int) (numBits & 7);
+	if (endBitOffset != 0) {
+	    stream.seek(stream.getStreamPosition() - 1);
+	    stream.setBitOffset(endBitOffset);
+	}
+    }
+
     public boolean isRandomAccessEasy (int imageIndex) {
 	// Once the color model and image size has been read, it's easy to
 	// access any pixel in the image.
 	return true;
     }
 
+    public void dispose() {
+	closeStream();
+	stream = null;
+    }
+
+    /**
+     * Closes the stream if it was created by the reader, rather than
+     * given as input.
+     */
+    private void closeStream() {
+	if (streamOwned) {
+	    streamOwned = false;
+	    try {
+		stream.close();
+	    } catch (IOException ioe) {
+		// nothing was written, the stream can be dropped
+	    }
+	}
+    }
+
     public void reset() {
 	super.reset();
+	tileWidth = 0;
+	tileHeight = 0;
 	resetStreamSettings();
     }
 
@@ -326,13 +1635,39 @@ public class BpiImageReader extends ImageReader {
      * This method is called when changing the input or resetting the reader.
      */
     private void resetStreamSettings() {
+	resetOffsets();
+
+	container = null;
+	headerRead = false;
+	streamStart = 0;
+	sharedIndex = null;
+    }
+
+    /**
+     * Forgets every offset, color model and image size learned from the
+     * current input.
+     */
+    private void resetOffsets() {
 	byteOffsets = new ArrayList();
 	bitOffsets = new ArrayList();
+	firstOffset = 0;
+	colorModels = new ArrayList();
+	colorModelCache.clear();
+	colorModelsByLastUse = null;
+	nextColorModelToDrop = 0;
+	lastColorModelUse = null;
 	numImages = -1;
 
 	currentIndex = -1;
 	imageMetadata = null;
 	imageSize = null;
+	imageDataPosition = -1;
+	currentRaster = -1;
+	rasterEnd = -1;
+	rasterDecoded = false;
+	tileOffsets = null;
+	rasterTileSize = null;
+	rasterMetadata = null;
     }
 
     /**
@@ -362,31 +1697,192 @@ public class BpiImageReader extends ImageReader {
      * @return The index of the last read raster.
      */
     private int locateImage (int imageIndex) throws IOException {
+	readStreamHeader();
+
 	int index = -1;
 	int rasterIndex = imageIndex;
 	// Find closest known index
 	if (descriptor != null) {
 	    rasterIndex = descriptor.getImageRaster(imageIndex);
 	}
+	if (container != null) {
+	    // every block offset is known
+	    int blockIndex = descriptor.indexOfRaster(rasterIndex);
+	    loadColorModels(blockIndex);
+	    seekBlock(blockIndex);
+	    return imageIndex;
+	}
+	boolean rasterSkipped = false;
 	if (!byteOffsets.isEmpty()) {
-	    index = Math.min(rasterIndex, byteOffsets.size() - 1);
-	    // Seek to that position
-	    stream.seek(((Long) byteOffsets.get(index)).longValue());
-	    stream.setBitOffset(((Integer) bitOffsets.get(index)).intValue());
+	    index = Math.min(rasterIndex, firstOffset + byteOffsets.size() - 1);
+	    if ((index < rasterIndex) && (index == currentRaster) && (rasterEnd >= 0)) {
+		// go on from the end of the last read raster rather than
+		// from its start, which forward-only streams cannot go back to
+		seekBits(rasterEnd);
+		rasterSkipped = true;
+	    } else {
+		// Seek to that position
+		stream.seek(((Long) byteOffsets.get(index - firstOffset)).longValue());
+		stream.setBitOffset(((Integer) bitOffsets.get(index - firstOffset)).intValue());
+	    }
+	} else {
+	    stream.seek(streamStart);
 	}
 
-	while (index < rasterIndex) {
-	    if (!skipImage(index))
-		return --index;
+	try {
+	    while (index < rasterIndex) {
+		if (!skipImage(index, rasterSkipped))
+		    return --index;
+		rasterSkipped = false;
 
-	    byteOffsets.add(new Long(stream.getStreamPosition()));
-	    bitOffsets.add(new Integer(stream.getBitOffset()));
-	    index++;
+		byteOffsets.add(new Long(stream.getStreamPosition()));
+		bitOffsets.add(new Integer(stream.getBitOffset()));
+		index++;
+	    }
+	} finally {
+	    publishSharedIndex();
+	}
+	if (seekForwardOnly) {
+	    forgetBefore(rasterIndex);
 	}
 
 	return imageIndex;
     }
 
+    /**
+     * Drops what is no longer needed once the stream is at the given raster
+     * (or image) in forward-only mode: the offsets of the previous rasters,
+     * the color models no following raster uses, and the data cached by the
+     * stream. Memory then does not grow with the number of images read.
+     * @param rasterIndex The index of the raster the stream is at.
+     */
+    private void forgetBefore (int rasterIndex) throws IOException {
+	int count = rasterIndex - firstOffset;
+	if (count > 0) {
+	    byteOffsets.subList(0, count).clear();
+	    bitOffsets.subList(0, count).clear();
+	    firstOffset = rasterIndex;
+	}
+
+	if (descriptor != null) {
+	    if (colorModelsByLastUse == null) {
+		sortColorModelsByLastUse();
+	    }
+	    while ((nextColorModelToDrop < colorModelsByLastUse.length)
+		   && (lastColorModelUse[colorModelsByLastUse[nextColorModelToDrop]] < rasterIndex)) {
+		int cmIndex = colorModelsByLastUse[nextColorModelToDrop++];
+		if (cmIndex < colorModels.size()) {
+		    colorModels.set(cmIndex, null);
+		}
+	    }
+	}
+
+	stream.flushBefore(((Long) byteOffsets.get(0)).longValue());
+    }
+
+    /**
+     * Sorts the color models of the descriptor by the last raster using
+     * them (a counting sort, as there are no more keys than rasters).
+     */
+    private void sortColorModelsByLastUse() {
+	int numRasters = descriptor.getNumRasters();
+	lastColorModelUse = new int[descriptor.getNumColorModels()];
+	Arrays.fill(lastColorModelUse, -1);
+	for (int rasterIndex = 0; rasterIndex < numRasters; rasterIndex++) {
+	    for (int i = 0; i < descriptor.getNumColorModels(rasterIndex); i++) {
+		lastColorModelUse[descriptor.getColorModel(rasterIndex, i)] = rasterIndex;
+	    }
+	}
+	// keys go from -1 to numRasters - 1
+	int[] start = new int[numRasters + 2];
+	for (int cmIndex = 0; cmIndex < lastColorModelUse.length; cmIndex++) {
+	    start[lastColorModelUse[cmIndex] + 2]++;
+	}
+	for (int key = 1; key < start.length; key++) {
+	    start[key] += start[key - 1];
+	}
+	colorModelsByLastUse = new int[lastColorModelUse.length];
+	for (int cmIndex = 0; cmIndex < lastColorModelUse.length; cmIndex++) {
+	    colorModelsByLastUse[start[lastColorModelUse[cmIndex] + 1]++] = cmIndex;
+	}
+	nextColorModelToDrop = 0;
+    }
+
+    /**
+     * Probes the input for a container header, once per input.
+     * If found, the container block table is used as the descriptor.
+     */
+    private void readStreamHeader() throws IOException {
+	if (headerRead)
+	    return;
+	if (stream == null)
+	    throw new IllegalStateException("Input not set.");
+
+	container = BpiCodec.readContainerHeader(stream);
+	streamStart = stream.getStreamPosition();
+	if (container != null) {
+	    descriptor = container.descriptor;
+	}
+	headerRead = true;
+	attachSharedIndex();
+    }
+
+    /**
+     * Looks up the offsets and color models other readers have learned about
+     * the current input, and starts from them.
+     * Only files read either without a descriptor or with their own
+     * descriptor can be shared; containers need no index, and forward-only
+     * reads keep no index.
+     */
+    private void attachSharedIndex() {
+	sharedIndex = null;
+	if ((container != null) || !descriptorFromInput || !(input instanceof File) || seekForwardOnly) {
+	    return;
+	}
+	sharedIndex = BpiOffsetIndexCache.getIndex((File) input, descriptor != null);
+	if (sharedIndex != null) {
+	    int n = sharedIndex.copyTo(byteOffsets, bitOffsets, colorModels);
+	    if ((n >= 0) && (descriptor == null)) {
+		numImages = n;
+	    }
+	}
+    }
+
+    /**
+     * Shares newly learned offsets and color models with other readers.
+     */
+    private void publishSharedIndex() {
+	if (sharedIndex != null) {
+	    sharedIndex.append(byteOffsets, bitOffsets, colorModels,
+		(descriptor == null) ? numImages : -1);
+	}
+    }
+
+    /**
+     * Seeks the start of a block of a container.
+     * @param blockIndex The index of the block to seek.
+     */
+    private void seekBlock (int blockIndex) throws IOException {
+	long bitOffset = container.getBlockOffset(blockIndex);
+	stream.seek(streamStart + (bitOffset >>> 3));
+	stream.setBitOffset((int) (bitOffset & 7));
+    }
+
+    /**
+     * Reads, from a container, every color model found before the given block
+     * that has not been read yet.
+     * @param blockIndex The index of the block.
+     */
+    private void loadColorModels (int blockIndex) throws IOException {
+	for (int cmIndex = colorModels.size(); cmIndex < descriptor.getNumColorModels(); cmIndex++) {
+	    int index = descriptor.indexOfColorModel(cmIndex);
+	    if (index >= blockIndex)
+		break;
+	    seekBlock(index);
+	    colorModels.add(readImageMetadata());
+	}
+    }
+
 //    private int locateBlock (int blockIndex) throws IOException, IIOException {
 //	int index = Math.min(blockIndex, byteOffsets.size() - 1);
 //
@@ -479,33 +1975,41 @@ public class BpiImageReader extends ImageReader {
      * Otherwise, skips the current color model and raster, leaving the stream
      * at the beginning of the next color model.
      *
+     * A negative index only reads the leading color models of a descriptor.
+     *
      * @param index The index of the raster (if there is a known descriptor) or
      * image that is being skipped.
-     * @return <CODE>false</CODE> if an error occured.
+     * @param rasterSkipped Whether the stream is already past the raster, in
+     * which case only the following color models are read.
+     * @return <CODE>false</CODE> if the end of the stream was reached,
+     * <CODE>true</CODE> otherwise.
+     * @throws IIOException if any other I/O error occurs.
      */
-    private boolean skipImage (int index) throws IIOException {
+    private boolean skipImage (int index, boolean rasterSkipped) throws IIOException {
 	try {
 	    ColorModel cm = null;
 	    if (descriptor != null) {
 		if (index < 0) {
 		    // We have to skip the leading color models
-		    for (int i = 0; descriptor.isColorModel(i); i++) {
+		    for (int i = 0; (i < descriptor.getNumBlocks()) && descriptor.isColorModel(i); i++) {
 			colorModels.add(readImageMetadata());
 		    }
 		} else {
 		    // skip raster
-		    BpiImageMetadata imageMetadata =
-			(BpiImageMetadata) colorModels.get(descriptor.getColorModel(index, 0));
-		    skipRaster(imageMetadata.bitsPerPixel);
+		    if (!rasterSkipped) {
+			BpiImageMetadata imageMetadata =
+			    (BpiImageMetadata) colorModels.get(descriptor.getColorModel(index, 0));
+			skipRaster(imageMetadata.bitsPerPixel);
+		    }
 
 		    // skip following color models
-		    for (int i = descriptor.indexOfRaster(index);
-			 descriptor.isColorModel(i); i++) {
+		    for (int i = descriptor.indexOfRaster(index) + 1;
+			 (i < descriptor.getNumBlocks()) && descriptor.isColorModel(i); i++) {
 			colorModels.add(readImageMetadata());
 		    }
 		}
 	    } else {
-		if (index >= 0) {
+		if ((index >= 0) && !rasterSkipped) {
 		    BpiImageMetadata imageMetadata = readImageMetadata();
 		    skipRaster(imageMetadata.bitsPerPixel);
 		}
@@ -523,11 +2027,16 @@ public class BpiImageReader extends ImageReader {
 	skipBits(rasterSize.width * rasterSize.height * bitsPerPixel);
     }
 
-    private void skipBits (int length) throws IOException {
+    private void seekBits (long bitPosition) throws IOException {
+	stream.seek(bitPosition >>> 3);
+	stream.setBitOffset((int) (bitPosition & 7));
+    }
+
+    private void skipBits (long length) throws IOException {
 	length += stream.getBitOffset();
 	stream.setBitOffset(0);
-	stream.skipBytes(length / 8);
-	stream.setBitOffset(length % 8);
+	stream.seek(stream.getStreamPosition() + (length >>> 3));
+	stream.setBitOffset((int) (length & 7));
     }
 
 //    static private BpiStreamMetadata readStreamMetadata (File imageFile) {
@@ -538,10 +2047,18 @@ public class BpiImageReader extends ImageReader {
 //	}
 //    }
 
-    static private class BpiImageReadParam extends ImageReadParam {
-	BpiImageReadParam() {
-	    super();
-	    canSetSourceRenderSize = false;
+    /**
+     * Returns true if the parameters do not ask for anything but the whole
+     * image, as returned by {@link #getDefaultReadParam}.
+     */
+    static private boolean isDefaultReadParam (ImageReadParam param) {
+	if (param == null) {
+	    return true;
 	}
+	return (param.getSourceRegion() == null)
+	    && (param.getSourceXSubsampling() == 1) && (param.getSourceYSubsampling() == 1)
+	    && (param.getDestination() == null) && (param.getDestinationType() == null)
+	    && (param.getDestinationOffset().x == 0) && (param.getDestinationOffset().y == 0)
+	    && (param.getSourceBands() == null) && (param.getDestinationBands() == null);
     }
 }
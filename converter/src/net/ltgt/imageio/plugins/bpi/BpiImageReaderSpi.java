@@ -24,7 +24,9 @@ import javax.imageio.ImageReader;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.ImageInputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -37,7 +39,8 @@ public class BpiImageReaderSpi extends ImageReaderSpi {
 	super(BpiCodec.AUTHOR, BpiCodec.VERSION, BpiCodec.FORMAT_NAMES,
 	    BpiCodec.SUFFIXES, BpiCodec.MIME_TYPES,
 	    BpiImageReader.class.getName(),
-	    new Class[] { ImageInputStream.class, File.class, URL.class },
+	    new Class[] { ImageInputStream.class, File.class, URL.class,
+		byte[].class, ByteBuffer.class, InputStream.class },
 	    new String[] { BpiImageWriterSpi.class.getName() },
 	    false,
 	    BpiStreamMetadata.nativeMetadataFormatName,
@@ -0,0 +1,178 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.awt.Dimension;
+import java.util.Locale;
+import javax.imageio.ImageWriteParam;
+
+/**
+ * Write parameters for the BPI format.
+ *
+ * Rasters of containers can be stored by tiles, set with
+ * <code>setTilingMode(MODE_EXPLICIT)</code> and <code>setTiling</code>,
+ * so that each tile can be read on its own.
+ *
+ * @author  Thomas Broyer
+ */
+public class BpiImageWriteParam extends ImageWriteParam {
+    /**
+     * Compression type run-length encoding the rasters, each one only if
+     * it makes it smaller. Rasters can only be compressed in containers.
+     */
+    static public final String COMPRESSION_RLE = "RLE";
+    /**
+     * Compression type filtering each row of the rasters with the predictor
+     * leaving the smallest residuals, then range coding the residuals.
+     * Each raster is compressed this way, run-length encoded, or left
+     * uncompressed, whichever is the smallest. Rasters can only be
+     * compressed in containers.
+     */
+    static public final String COMPRESSION_PREDICTIVE = "Predictive";
+
+//    private boolean createPalette = false;
+    private boolean writeContainer = false;
+    private boolean forceWrite = false;
+    private boolean alignBlocks = false;
+    private boolean alignRows = false;
+
+    BpiImageWriteParam (Locale locale) {
+	super();
+	this.locale = locale;
+
+	canWriteTiles = true;
+	preferredTileSizes = new Dimension[] {
+	    new Dimension(BpiImageFormat.MIN_WIDTH, BpiImageFormat.MIN_HEIGHT),
+	    new Dimension((1 << BpiImageFormat.WIDTH_SIZE) - 1 + BpiImageFormat.MIN_WIDTH,
+		(1 << BpiImageFormat.HEIGHT_SIZE) - 1 + BpiImageFormat.MIN_HEIGHT)
+	};
+	canOffsetTiles = false;
+	canWriteProgressive = false;
+	canWriteCompressed = true;
+	compressionTypes = new String[] { COMPRESSION_RLE, COMPRESSION_PREDICTIVE };
+    }
+
+    public boolean isCompressionLossless() {
+	super.isCompressionLossless();
+	return true;
+    }
+
+//    public void setCreatePalette (boolean value) {
+//	createPalette = value;
+//    }
+//
+//    public boolean getCreatePalette() {
+//	return createPalette;
+//    }
+
+    /**
+     * Sets whether the stream should be written as a self-describing
+     * container, that is prefixed with a header holding the block table
+     * and the offset of each block.
+     * No descriptor file is written for containers.
+     *
+     * @param value <code>true</code> to write a container.
+     */
+    public void setWriteContainer (boolean value) {
+	writeContainer = value;
+    }
+
+    public boolean getWriteContainer() {
+	return writeContainer;
+    }
+
+    /**
+     * Returns the compression method of the rasters, see
+     * <code>BpiImageFormat.COMPRESSION_*</code>: rasters are only compressed
+     * when the compression mode is <code>MODE_EXPLICIT</code> with a
+     * compression type set.
+     */
+    int getRasterCompression() {
+	if ((getCompressionMode() != MODE_EXPLICIT) || (getCompressionType() == null)) {
+	    return BpiImageFormat.COMPRESSION_NONE;
+	}
+	if (COMPRESSION_PREDICTIVE.equals(getCompressionType())) {
+	    return BpiImageFormat.COMPRESSION_PREDICTIVE;
+	}
+	return BpiImageFormat.COMPRESSION_RLE;
+    }
+
+    /**
+     * Sets whether each block of a container should start on a byte
+     * boundary, so that blocks can be located and copied without shifting
+     * bits, at the cost of up to 7 padding bits per block.
+     * Only applies to containers.
+     *
+     * @param value <code>true</code> to align blocks.
+     */
+    public void setAlignBlocks (boolean value) {
+	alignBlocks = value;
+    }
+
+    public boolean getAlignBlocks() {
+	return alignBlocks;
+    }
+
+    /**
+     * Sets whether the pixels and each row of the rasters of a container
+     * should also start on a byte boundary, so that rows can be read in
+     * bulk without shifting bits, at the cost of up to 7 padding bits per
+     * row. Aligning rows also aligns blocks.
+     * Only applies to containers, and rows of compressed rasters cannot be
+     * aligned.
+     *
+     * @param value <code>true</code> to align rows.
+     */
+    public void setAlignRows (boolean value) {
+	alignRows = value;
+    }
+
+    public boolean getAlignRows() {
+	return alignRows;
+    }
+
+    /**
+     * Returns the size of the tiles of the rasters, or <code>null</code> if
+     * rasters should not be tiled, that is if the tiling mode is not
+     * <code>MODE_EXPLICIT</code>.
+     */
+    Dimension getRasterTileSize() {
+	if (getTilingMode() != MODE_EXPLICIT) {
+	    return null;
+	}
+	return new Dimension(getTileWidth(), getTileHeight());
+    }
+
+    /**
+     * Sets whether the written data should be forced to the storage device
+     * once the image or the sequence is complete. Only applies to
+     * <code>File</code> outputs.
+     *
+     * @param value <code>true</code> to force the data to the device.
+     */
+    public void setForceWrite (boolean value) {
+	forceWrite = value;
+    }
+
+    public boolean getForceWrite() {
+	return forceWrite;
+    }
+}
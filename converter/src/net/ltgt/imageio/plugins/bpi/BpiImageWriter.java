@@ -25,9 +25,11 @@ import javax.imageio.metadata.*;
 import javax.imageio.spi.*;
 import javax.imageio.stream.*;
 import java.util.*;
+import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -35,10 +37,29 @@ import java.io.*;
  */
 public class BpiImageWriter extends ImageWriter {
     private ImageOutputStream stream = null;
+    /**
+     * Whether <code>stream</code> has been created by the writer, which
+     * must then close it.
+     */
+    private boolean streamOwned = false;
     private File metadataFile = null;
 
     private int currentRaster = 0;
 
+    /**
+     * Header of the container being written, or <code>null</code> if not
+     * writing a container.
+     */
+    private BpiContainerHeader container = null;
+    /** Position of the container header in the stream. */
+    private long containerStart = 0;
+    /** Position of the first block following the container header. */
+    private long dataStart = 0;
+    /** Compression method tried on the rasters of the container. */
+    private int rasterCompression = BpiImageFormat.COMPRESSION_NONE;
+    /** Size of the tiles of the rasters of the container, if tiled. */
+    private Dimension rasterTileSize = null;
+
     static private final int READY = 0;
     static private final int IN_WRITE_SEQUENCE = 1;
     static private final int IN_WRITE_EMPTY = 2;
@@ -61,18 +82,54 @@ public class BpiImageWriter extends ImageWriter {
     public void setOutput (Object output) {
 	super.setOutput(output);
 
-	if (output instanceof ImageOutputStream) {
+	closeStream();
+	if (output == null) {
+	    stream = null;
+	    metadataFile = null;
+	} else if (output instanceof ImageOutputStream) {
 	    stream = (ImageOutputStream) output;
 	    metadataFile = null;
+	} else if (output instanceof byte[]) {
+	    stream = new BpiByteBufferOutputStream(ByteBuffer.wrap((byte[]) output));
+	    streamOwned = true;
+	    metadataFile = null;
+	} else if (output instanceof ByteBuffer) {
+	    stream = new BpiByteBufferOutputStream((ByteBuffer) output);
+	    streamOwned = true;
+	    metadataFile = null;
 	} else if (output instanceof File) {
 	    metadataFile = BpiCodec.getDescriptorFile((File) output);
 	    try {
-		stream = ImageIO.createImageOutputStream(output);
+		stream = new BpiFileChannelOutputStream((File) output,
+			BpiFileChannelOutputStream.DEFAULT_BUFFER_SIZE);
 	    } catch (IOException ioe) {
 		throw new IllegalArgumentException("ImageOutputStream cannot be created on the specified output file");
 	    }
+	    streamOwned = true;
 	}
 	currentRaster = 0;
+	container = null;
+	level = READY;
+    }
+
+    public void dispose() {
+	closeStream();
+	stream = null;
+    }
+
+    /**
+     * Closes the stream if it was created by the writer, rather than
+     * given as output.
+     */
+    private void closeStream() {
+	if (streamOwned) {
+	    streamOwned = false;
+	    try {
+		stream.close();
+	    } catch (IOException ioe) {
+		throw new IllegalStateException("Unable to close the output: " + ioe.getMessage());
+	    }
+	}
     }
 
     public ImageWriteParam getDefaultWriteParam() {
@@ -120,25 +177,206 @@ public class BpiImageWriter extends ImageWriter {
 
 	BpiImageMetadata imageMetadata = (BpiImageMetadata) convertImageMetadata(image.getMetadata(),
 		(param == null) ? null : param.getDestinationType(), param);
-	Raster raster = null;
-	if (image.hasRaster()) {
-	    raster = image.getRaster();
-	    if (imageMetadata == null) {
-		throw new IllegalArgumentException("Cannot write a raster without a color model.");
-	    }
-	} else {
-	    raster = image.getRenderedImage().getData();
+	if (image.hasRaster() && (imageMetadata == null)) {
+	    throw new IllegalArgumentException("Cannot write a raster without a color model.");
 	}
+	Raster raster = null;
 	if (imageMetadata != null) {
+	    raster = getRaster(image, imageMetadata);
 	    ColorModel cm = imageMetadata.createCompatibleColorModel();
 	    if (!cm.isCompatibleRaster(raster)) {
 		throw new IllegalArgumentException("Image metadata and raster are not compatible.");
 	    }
 	} else {
 	    imageMetadata = BpiImageMetadata.inferFrom(image.getRenderedImage());
+	    raster = getRaster(image, imageMetadata);
+	}
+	checkContainerSettings(param);
+	if (isWriteContainer(param)) {
+	    BpiStreamMetadata descriptor = new BpiStreamMetadata();
+	    descriptor.addImage();
+	    beginContainer(descriptor, param);
+	    startBlock();
+	    writeImageMetadata(imageMetadata);
+	    startBlock();
+	    writeRaster(currentRaster++, raster);
+	    endContainer();
+	} else {
+	    writeImageMetadata(imageMetadata);
+	    writeRaster(currentRaster++, raster);
+	}
+	completeOutput(isForceWrite(param));
+    }
+
+    /**
+     * Encodes an image into a new array of exactly the encoded size.
+     * The array becomes the output of the writer.
+     *
+     * @param image the image to encode.
+     * @param param the write param, or <code>null</code>.
+     * @return the encoded image.
+     */
+    public byte[] encode (IIOImage image, ImageWriteParam param) throws IOException {
+	long size = estimateEncodedSize(image, param);
+	if (size > Integer.MAX_VALUE) {
+	    throw new IIOException("Image is too large to be encoded in memory.");
+	}
+	byte[] data = new byte[(int) size];
+	setOutput(data);
+	write(null, image, param);
+	return data;
+    }
+
+    /**
+     * Computes the exact size, in bytes, of an image as written by
+     * {@link #write(IIOMetadata, IIOImage, ImageWriteParam)} at the start of
+     * the output. Nothing is encoded.
+     *
+     * @param image the image.
+     * @param param the write param, or <code>null</code>.
+     * @return the size, in bytes, of the encoded image.
+     */
+    public long estimateEncodedSize (IIOImage image, ImageWriteParam param) {
+	checkContainerSettings(param);
+	int flags = getContainerFlags(param);
+	BpiImageMetadata imageMetadata = getImageMetadata(image, param);
+	long bits = BpiCodec.getEncodedColorModelBits(imageMetadata);
+	bits = alignBlock(bits, flags) + getEncodedRasterBits(image, imageMetadata,
+	    flags, getRasterCompression(param), getRasterTileSize(param));
+	long size = (bits + 7) >>> 3;
+	if (isWriteContainer(param)) {
+	    BpiStreamMetadata descriptor = new BpiStreamMetadata();
+	    descriptor.addImage();
+	    size += new BpiContainerHeader(descriptor).getSize();
+	}
+	return size;
+    }
+
+    /**
+     * Computes the exact size, in bytes, of a sequence as written by
+     * {@link #prepareWriteSequence(IIOMetadata, ImageWriteParam)}, followed by
+     * {@link #writeToSequence} for each element of <code>images</code>, at the
+     * start of the output. Nothing is encoded.
+     *
+     * @param streamMetadata the descriptor of the sequence, or <code>null</code>.
+     * @param images the <code>IIOImage</code>s of the sequence, and the
+     *	<code>BpiImageMetadata</code> written alone, in order.
+     * @param param the write param, or <code>null</code>.
+     * @return the size, in bytes, of the encoded sequence.
+     */
+    public long estimateEncodedSize (IIOMetadata streamMetadata, List images, ImageWriteParam param) {
+	checkContainerSettings(param);
+	BpiStreamMetadata descriptor = (BpiStreamMetadata) convertStreamMetadata(streamMetadata, null);
+	int flags = getContainerFlags(param);
+	int compression = getRasterCompression(param);
+	Dimension tileSize = getRasterTileSize(param);
+	long bits = 0;
+	int block = 0;
+	for (Iterator iter = images.iterator(); iter.hasNext(); ) {
+	    Object o = iter.next();
+	    if (o instanceof BpiImageMetadata) {
+		if (descriptor == null) {
+		    throw new IllegalArgumentException("Can't write image metadata alone without a provided descriptor.");
+		}
+		bits = alignBlock(bits, flags) + BpiCodec.getEncodedColorModelBits((BpiImageMetadata) o);
+		block++;
+		continue;
+	    }
+	    IIOImage image = (IIOImage) o;
+	    BpiImageMetadata imageMetadata = null;
+	    if ((descriptor == null) || descriptor.isColorModel(block)) {
+		imageMetadata = getImageMetadata(image, param);
+		bits = alignBlock(bits, flags) + BpiCodec.getEncodedColorModelBits(imageMetadata);
+		block++;
+	    }
+	    bits = alignBlock(bits, flags) + getEncodedRasterBits(image, imageMetadata, flags, compression, tileSize);
+	    block++;
+	}
+	long size = (bits + 7) >>> 3;
+	if (isWriteContainer(param)) {
+	    if (descriptor == null) {
+		throw new IllegalArgumentException("Cannot write a container without a descriptor.");
+	    }
+	    size += new BpiContainerHeader(descriptor).getSize();
+	}
+	return size;
+    }
+
+    /**
+     * Returns the color model written for an image, as <code>write</code> does.
+     */
+    private BpiImageMetadata getImageMetadata (IIOImage image, ImageWriteParam param) {
+	BpiImageMetadata imageMetadata = (BpiImageMetadata) convertImageMetadata(image.getMetadata(),
+		(param == null) ? null : param.getDestinationType(), param);
+	if (imageMetadata == null) {
+	    if (image.hasRaster()) {
+		throw new IllegalArgumentException("Cannot write a raster without a color model.");
+	    }
+	    imageMetadata = BpiImageMetadata.inferFrom(image.getRenderedImage());
 	}
-	writeImageMetadata(imageMetadata);
-	writeRaster(currentRaster++, raster);
+	return imageMetadata;
+    }
+
+    /**
+     * Returns the size, in bits, of the raster written for an image.
+     * Every sample is written with its own size, see <code>writeRaster</code>.
+     * Compressed rasters have to be encoded to know their size.
+     *
+     * @param imageMetadata the color model written with the image, or
+     *	<code>null</code>.
+     */
+    static private long getEncodedRasterBits (IIOImage image, BpiImageMetadata imageMetadata,
+	    int flags, int compression, Dimension tileSize) {
+	if ((flags & BpiImageFormat.CONTAINER_TILED_RASTERS) != 0) {
+	    Raster raster = getRaster(image, imageMetadata);
+	    int width = raster.getWidth();
+	    int height = raster.getHeight();
+	    return BpiImageFormat.WIDTH_SIZE + BpiImageFormat.HEIGHT_SIZE
+		+ BpiCodec.getTiledPixelsBits(getPixelValues(raster), width, height,
+		    Math.min(tileSize.width, width), Math.min(tileSize.height, height),
+		    BpiCodec.getStoredSampleSizes(raster.getSampleModel().getSampleSize()), flags, compression);
+	}
+	if (compression != BpiImageFormat.COMPRESSION_NONE) {
+	    Raster raster = getRaster(image, imageMetadata);
+	    return BpiImageFormat.WIDTH_SIZE + BpiImageFormat.HEIGHT_SIZE
+		+ BpiCodec.getCompressedPixelsBits(getPixelValues(raster), raster.getWidth(), raster.getHeight(),
+		    BpiCodec.getStoredSampleSizes(raster.getSampleModel().getSampleSize()), compression);
+	}
+	SampleModel sm;
+	int width;
+	int height;
+	if (image.hasRaster()) {
+	    Raster raster = image.getRaster();
+	    sm = raster.getSampleModel();
+	    width = raster.getWidth();
+	    height = raster.getHeight();
+	} else {
+	    RenderedImage renderedImage = image.getRenderedImage();
+	    sm = renderedImage.getSampleModel();
+	    width = renderedImage.getWidth();
+	    height = renderedImage.getHeight();
+	}
+	int bitsPerPixel = 0;
+	if (isMapped(image, imageMetadata)) {
+	    bitsPerPixel = imageMetadata.bitsPerPixel;
+	} else {
+	    int[] sampleSize = sm.getSampleSize();
+	    for (int i = 0; i < sampleSize.length; i++) {
+		bitsPerPixel += sampleSize[i];
+	    }
+	}
+	if ((flags & BpiImageFormat.CONTAINER_ALIGNED_ROWS) != 0) {
+	    return BpiCodec.getAlignedRasterBits(width, height, bitsPerPixel);
+	}
+	return BpiCodec.getEncodedRasterBits(width, height, bitsPerPixel);
+    }
+
+    /**
+     * Returns the position, in bits, of a block following the given number
+     * of bits, as <code>startBlock</code> does.
+     */
+    static private long alignBlock (long bits, int flags) {
+	return ((flags & BpiImageFormat.CONTAINER_ALIGNED_BLOCKS) != 0) ? BpiCodec.alignBits(bits) : bits;
     }
 
     public boolean canWriteSequence() {
@@ -147,8 +385,22 @@ public class BpiImageWriter extends ImageWriter {
 
     private BpiStreamMetadata descriptor = null;
     private int currentBlock = 0;
+    /** Whether the sequence must be forced to the storage device once complete. */
+    private boolean forceSequence = false;
 
     public void prepareWriteSequence (IIOMetadata streamMetadata) throws IOException {
+	prepareWriteSequence(streamMetadata, null);
+    }
+
+    /**
+     * Prepares the writer to write a sequence of images, using the stream
+     * level settings of the given write param.
+     *
+     * @param streamMetadata the descriptor of the sequence, or <code>null</code>.
+     * @param param a <code>BpiImageWriteParam</code>, or <code>null</code>.
+     * @throws IllegalArgumentException if a container is requested without a descriptor.
+     */
+    public void prepareWriteSequence (IIOMetadata streamMetadata, ImageWriteParam param) throws IOException {
 	checkOutput();
 
 	if (level == IN_WRITE_SEQUENCE)
@@ -156,8 +408,19 @@ public class BpiImageWriter extends ImageWriter {
 	if (level != READY)
 	    throw new IllegalStateException("Writing empty or replacing pixels");
 
+	checkContainerSettings(param);
 	descriptor = (BpiStreamMetadata) convertStreamMetadata(streamMetadata, null);
 	currentBlock = 0;
+
+	if (isWriteContainer(param)) {
+	    if (descriptor == null) {
+		throw new IllegalArgumentException("Cannot write a container without a descriptor.");
+	    }
+	    beginContainer(descriptor, param);
+	}
+	forceSequence = isForceWrite(param);
+
+	level = IN_WRITE_SEQUENCE;
     }
 
     public void writeToSequence (IIOImage image, ImageWriteParam param) throws IOException {
@@ -166,44 +429,43 @@ public class BpiImageWriter extends ImageWriter {
 	    throw new IllegalStateException("Not in write sequence");
 
 	if (descriptor == null) {
-	    BpiImageMetadata imageMetadata = (BpiImageMetadata) convertImageMetadata(image.getMetadata(), param.getDestinationType(), param);
-	    Raster raster = null;
-	    if (image.hasRaster()) {
-		raster = image.getRaster();
-		if (imageMetadata == null) {
-		    throw new IllegalArgumentException("Cannot write a raster if there is no descriptor.");
-		}
-	    } else {
-		raster = image.getRenderedImage().getData();
+	    BpiImageMetadata imageMetadata = (BpiImageMetadata) convertImageMetadata(image.getMetadata(),
+		    (param == null) ? null : param.getDestinationType(), param);
+	    if (image.hasRaster() && (imageMetadata == null)) {
+		throw new IllegalArgumentException("Cannot write a raster if there is no descriptor.");
 	    }
+	    Raster raster = null;
 	    if (imageMetadata != null) {
+		raster = getRaster(image, imageMetadata);
 		ColorModel cm = imageMetadata.createCompatibleColorModel();
 		if (!cm.isCompatibleRaster(raster)) {
 		    throw new IllegalArgumentException("Image metadata and raster are not compatible.");
 		}
 	    } else {
 		imageMetadata = BpiImageMetadata.inferFrom(image.getRenderedImage());
+		raster = getRaster(image, imageMetadata);
 	    }
 	    writeImageMetadata(imageMetadata);
 	    writeRaster(currentRaster++, raster);
 	} else {
+	    BpiImageMetadata imageMetadata = null;
 	    if (descriptor.isColorModel(currentBlock)) {
-		BpiImageMetadata imageMetadata = (BpiImageMetadata) convertImageMetadata(image.getMetadata(), param.getDestinationType(), param);
+		imageMetadata = (BpiImageMetadata) convertImageMetadata(image.getMetadata(),
+			(param == null) ? null : param.getDestinationType(), param);
 		if (imageMetadata == null) {
 		    if (image.hasRaster()) {
 			throw new IllegalArgumentException("Found a raster, expected a color model.");
 		    }
 		    imageMetadata = BpiImageMetadata.inferFrom(image.getRenderedImage());
 		}
-		currentBlock++;
+		startBlock();
 		writeImageMetadata(imageMetadata);
 	    }
 	    if (!descriptor.isRaster(currentBlock)) {
 		throw new IllegalArgumentException("Found a color model, expected a raster.");
 	    }
-	    currentBlock++;
-	    Raster raster = image.hasRaster() ? image.getRaster() : image.getRenderedImage().getData();
-	    writeRaster(currentRaster++, raster);
+	    startBlock();
+	    writeRaster(currentRaster++, getRaster(image, imageMetadata));
 	}
     }
 
@@ -219,7 +481,7 @@ public class BpiImageWriter extends ImageWriter {
 	if (!descriptor.isColorModel(currentBlock)) {
 	    throw new IllegalStateException("Found a raster, expected a color model.");
 	}
-	currentBlock++;
+	startBlock();
 	writeImageMetadata(metadata);
     }
 
@@ -232,11 +494,16 @@ public class BpiImageWriter extends ImageWriter {
 	    if (currentBlock != descriptor.getNumBlocks()) {
 		processWarningOccurred(-1, "Sequence is not complete while ending.");
 	    }
-	    writeStreamMetadata(descriptor);
+	    if (container != null) {
+		endContainer();
+	    } else {
+		writeStreamMetadata(descriptor);
+	    }
 	}
 
 	descriptor = null;
 	currentBlock = 0;
+	completeOutput(forceSequence);
 
 	level = READY;
     }
@@ -308,6 +575,135 @@ public class BpiImageWriter extends ImageWriter {
 	    throw new IllegalStateException("output not set");
     }
 
+    private boolean isWriteContainer (ImageWriteParam param) {
+	return (param instanceof BpiImageWriteParam)
+	    && ((BpiImageWriteParam) param).getWriteContainer();
+    }
+
+    private Dimension getRasterTileSize (ImageWriteParam param) {
+	return (param instanceof BpiImageWriteParam)
+	    ? ((BpiImageWriteParam) param).getRasterTileSize()
+	    : null;
+    }
+
+    private int getRasterCompression (ImageWriteParam param) {
+	return (param instanceof BpiImageWriteParam)
+	    ? ((BpiImageWriteParam) param).getRasterCompression()
+	    : BpiImageFormat.COMPRESSION_NONE;
+    }
+
+    /**
+     * Returns the flags of the container written with the given param, or
+     * 0 if not writing a container.
+     */
+    private int getContainerFlags (ImageWriteParam param) {
+	if (!isWriteContainer(param)) {
+	    return 0;
+	}
+	BpiImageWriteParam bpiParam = (BpiImageWriteParam) param;
+	int flags = 0;
+	if (bpiParam.getRasterCompression() != BpiImageFormat.COMPRESSION_NONE) {
+	    flags |= BpiImageFormat.CONTAINER_COMPRESSED_RASTERS;
+	}
+	if (bpiParam.getAlignRows()) {
+	    flags |= BpiImageFormat.CONTAINER_ALIGNED_ROWS | BpiImageFormat.CONTAINER_ALIGNED_BLOCKS;
+	}
+	if (bpiParam.getAlignBlocks()) {
+	    flags |= BpiImageFormat.CONTAINER_ALIGNED_BLOCKS;
+	}
+	if (bpiParam.getRasterTileSize() != null) {
+	    flags |= BpiImageFormat.CONTAINER_TILED_RASTERS;
+	}
+	return flags;
+    }
+
+    /**
+     * Checks that rasters are only compressed, aligned or tiled in containers, the
+     * only streams telling how their rasters are stored, and that rows of
+     * compressed rasters are not aligned.
+     */
+    private void checkContainerSettings (ImageWriteParam param) {
+	if (!(param instanceof BpiImageWriteParam)) {
+	    return;
+	}
+	BpiImageWriteParam bpiParam = (BpiImageWriteParam) param;
+	boolean compress = (bpiParam.getRasterCompression() != BpiImageFormat.COMPRESSION_NONE);
+	if (!bpiParam.getWriteContainer()) {
+	    if (compress) {
+		throw new IllegalArgumentException("Rasters can only be compressed in a container.");
+	    }
+	    if (bpiParam.getAlignBlocks() || bpiParam.getAlignRows()) {
+		throw new IllegalArgumentException("Blocks and rows can only be aligned in a container.");
+	    }
+	    if (bpiParam.getRasterTileSize() != null) {
+		throw new IllegalArgumentException("Rasters can only be tiled in a container.");
+	    }
+	}
+	if (compress && bpiParam.getAlignRows()) {
+	    throw new IllegalArgumentException("Rows of compressed rasters cannot be aligned.");
+	}
+    }
+
+    private boolean isForceWrite (ImageWriteParam param) {
+	return (param instanceof BpiImageWriteParam)
+	    && ((BpiImageWriteParam) param).getForceWrite();
+    }
+
+    /**
+     * Hands the buffered data over to the file once an image or a
+     * sequence is complete.
+     */
+    private void completeOutput (boolean force) throws IOException {
+	if (stream instanceof BpiFileChannelOutputStream) {
+	    ((BpiFileChannelOutputStream) stream).flushBuffer(force);
+	}
+    }
+
+    /**
+     * Writes a placeholder container header for the given block table.
+     * The actual block offsets are written by {@link #endContainer()}.
+     */
+    private void beginContainer (BpiStreamMetadata descriptor, ImageWriteParam param) throws IOException {
+	container = new BpiContainerHeader(descriptor);
+	container.flags = getContainerFlags(param);
+	rasterCompression = getRasterCompression(param);
+	rasterTileSize = getRasterTileSize(param);
+	currentBlock = 0;
+	containerStart = stream.getStreamPosition();
+	BpiCodec.writeContainerHeader(stream, container);
+	dataStart = stream.getStreamPosition();
+    }
+
+    /**
+     * Rewrites the container header with the recorded block offsets and
+     * goes back to the end of the stream.
+     */
+    private void endContainer() throws IOException {
+	long endPosition = stream.getStreamPosition();
+	int endBitOffset = stream.getBitOffset();
+	stream.seek(containerStart);
+	BpiCodec.writeContainerHeader(stream, container);
+	stream.seek(endPosition);
+	stream.setBitOffset(endBitOffset);
+	container = null;
+    }
+
+    /**
+     * Records the offset of the block about to be written (if writing a
+     * container), after padding to a byte boundary if blocks are aligned,
+     * and moves on to the next block.
+     */
+    private void startBlock() throws IOException {
+	if (container != null) {
+	    if ((container.flags & BpiImageFormat.CONTAINER_ALIGNED_BLOCKS) != 0) {
+		BpiCodec.alignToByte(stream);
+	    }
+	    long bitOffset = (stream.getStreamPosition() - dataStart) * 8 + stream.getBitOffset();
+	    container.setBlockOffset(currentBlock, bitOffset);
+	}
+	currentBlock++;
+    }
+
     private void writeStreamMetadata (BpiStreamMetadata metadata) throws IOException {
 	if (metadataFile != null) {
 	    BpiCodec.writeDescriptor(metadataFile, metadata);
@@ -324,15 +720,40 @@ public class BpiImageWriter extends ImageWriter {
 
 	BpiCodec.writeRasterSize(stream, width, height);
 
+	if ((container != null) && ((container.flags & BpiImageFormat.CONTAINER_TILED_RASTERS) != 0)) {
+	    processImageStarted(imageIndex);
+	    BpiCodec.writeTiledPixels(stream, getPixelValues(raster), width, height,
+		Math.min(rasterTileSize.width, width), Math.min(rasterTileSize.height, height),
+		BpiCodec.getStoredSampleSizes(raster.getSampleModel().getSampleSize()),
+		container.flags, rasterCompression);
+	    processImageProgress(100.0F);
+	    processImageComplete();
+	    return;
+	}
+	if ((container != null) && ((container.flags & BpiImageFormat.CONTAINER_COMPRESSED_RASTERS) != 0)) {
+	    processImageStarted(imageIndex);
+	    BpiCodec.writeCompressedPixels(stream, getPixelValues(raster), width, height,
+		BpiCodec.getStoredSampleSizes(raster.getSampleModel().getSampleSize()), rasterCompression);
+	    processImageProgress(100.0F);
+	    processImageComplete();
+	    return;
+	}
+
 	int bitsPerPixel = 0;
 	int[] sampleSize = raster.getSampleModel().getSampleSize();
 //	for (int i = 0; i < sampleSize.length; i++) {
 //	    bitsPerPixel += sampleSize[i];
 //	}
 
+	boolean alignRows = (container != null)
+	    && ((container.flags & BpiImageFormat.CONTAINER_ALIGNED_ROWS) != 0);
+
 	processImageStarted(imageIndex);
 	int[] row = new int[width];
 	for (int y = 0; y < height; y++) {
+	    if (alignRows) {
+		BpiCodec.alignToByte(stream);
+	    }
 	    for (int x = 0; x < width; x++) {
 		int[] pixel = raster.getPixel(x, y, (int[]) null);
 		if ((pixel.length % 2) == 0) {
@@ -351,26 +772,103 @@ public class BpiImageWriter extends ImageWriter {
 	}
 	processImageComplete();
     }
-}
 
-/*public*/ class BpiImageWriteParam extends ImageWriteParam {
-//    private boolean createPalette = false;
+    /**
+     * Returns whether the pixels of an image are mapped to the palette of the
+     * color model written with it, see <code>getRaster</code>.
+     */
+    static private boolean isMapped (IIOImage image, BpiImageMetadata imageMetadata) {
+	return !image.hasRaster() && (imageMetadata != null) && (imageMetadata.palette != null)
+	    && (image.getRenderedImage().getColorModel() instanceof IndexColorModel);
+    }
 
-    BpiImageWriteParam (Locale locale) {
-	super();
-	this.locale = locale;
+    /**
+     * Returns the raster written for an image.
+     * The pixels of an indexed image written with a palette are mapped to the
+     * palette entry of the same color, and stored with the bits per pixel of
+     * the palette: the indices of the image are neither in the same order
+     * nor of the same size.
+     *
+     * @param imageMetadata the color model written with the image, or
+     *	<code>null</code> to write the raster of the image as is.
+     */
+    static private Raster getRaster (IIOImage image, BpiImageMetadata imageMetadata) {
+	if (image.hasRaster()) {
+	    return image.getRaster();
+	}
+	RenderedImage renderedImage = image.getRenderedImage();
+	Raster source = renderedImage.getData();
+	if (!isMapped(image, imageMetadata)) {
+	    return source;
+	}
+
+	IndexColorModel sourceModel = (IndexColorModel) renderedImage.getColorModel();
+	IndexColorModel cm = (IndexColorModel) imageMetadata.createCompatibleColorModel();
+	int[] rgbs = new int[cm.getMapSize()];
+	cm.getRGBs(rgbs);
+	Map pixelValues = new HashMap();
+	for (int i = rgbs.length - 1; i >= 0; i--) {
+	    pixelValues.put(Integer.valueOf(rgbs[i]), Integer.valueOf(i));
+	}
+	int[] lut = new int[sourceModel.getMapSize()];
+	for (int i = 0; i < lut.length; i++) {
+	    int rgb = sourceModel.getRGB(i);
+	    Integer pixelValue = (Integer) pixelValues.get(Integer.valueOf(rgb));
+	    if ((pixelValue == null) && ((rgb >>> 24) == 0) && (cm.getTransparentPixel() >= 0)) {
+		pixelValue = Integer.valueOf(cm.getTransparentPixel());
+	    }
+	    if (pixelValue == null) {
+		// the palette has no alpha
+		pixelValue = (Integer) pixelValues.get(Integer.valueOf(rgb | 0xFF000000));
+	    }
+	    lut[i] = (pixelValue == null) ? 0 : pixelValue.intValue();
+	}
 
-	canWriteTiles = false;
-	canOffsetTiles = false;
-	canWriteProgressive = false;
-	canWriteCompressed = false;
+	int width = source.getWidth();
+	int height = source.getHeight();
+	WritableRaster raster = Raster.createPackedRaster(cm.getTransferType(), width, height,
+		new int[] { (1 << imageMetadata.bitsPerPixel) - 1 }, null);
+	int[] row = new int[width];
+	for (int y = 0; y < height; y++) {
+	    source.getSamples(source.getMinX(), source.getMinY() + y, width, 1, 0, row);
+	    for (int x = 0; x < width; x++) {
+		row[x] = lut[row[x]];
+	    }
+	    raster.setSamples(0, y, width, 1, 0, row);
+	}
+	return raster;
     }
 
-//    public void setCreatePalette (boolean value) {
-//	createPalette = value;
-//    }
-//
-//    public boolean getCreatePalette() {
-//	return createPalette;
-//    }
+    /**
+     * Returns the pixels of a raster, one per element, each made of its
+     * samples as <code>writeRaster</code> writes them one after the other.
+     */
+    static private int[] getPixelValues (Raster raster) {
+	int width = raster.getWidth();
+	int height = raster.getHeight();
+	int[] sampleSize = raster.getSampleModel().getSampleSize();
+	int numBands = sampleSize.length;
+	int[] pixels = new int[width * height];
+	int[] pixel = new int[numBands];
+	int i = 0;
+	for (int y = 0; y < height; y++) {
+	    for (int x = 0; x < width; x++) {
+		raster.getPixel(raster.getMinX() + x, raster.getMinY() + y, pixel);
+		int value = 0;
+		if ((numBands % 2) == 0) {
+		    // alpha comes first
+		    value = pixel[numBands - 1];
+		    for (int b = 0; b < numBands - 1; b++) {
+			value = (value << sampleSize[b]) | pixel[b];
+		    }
+		} else {
+		    for (int b = 0; b < numBands; b++) {
+			value = (value << sampleSize[b]) | pixel[b];
+		    }
+		}
+		pixels[i++] = value;
+	    }
+	}
+	return pixels;
+    }
 }
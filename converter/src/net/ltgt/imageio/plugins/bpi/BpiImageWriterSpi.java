@@ -27,6 +27,7 @@ import javax.imageio.stream.ImageOutputStream;
 import java.awt.color.ColorSpace;
 import java.awt.image.SampleModel;
 import java.io.File;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -39,7 +40,7 @@ public class BpiImageWriterSpi extends ImageWriterSpi {
 	super(BpiCodec.AUTHOR, BpiCodec.VERSION, BpiCodec.FORMAT_NAMES,
 	    BpiCodec.SUFFIXES, BpiCodec.MIME_TYPES,
 	    BpiImageWriter.class.getName(),
-	    new Class[] { ImageOutputStream.class, File.class },
+	    new Class[] { ImageOutputStream.class, File.class, byte[].class, ByteBuffer.class },
 	    new String[] { BpiImageReaderSpi.class.getName() },
 	    false,
 	    BpiStreamMetadata.nativeMetadataFormatName,
@@ -0,0 +1,221 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the block offsets and color models discovered by
+ * {@link BpiImageReader} instances while scanning a file.
+ *
+ * Indices are keyed by file version (see {@link BpiFileKey}) and by whether
+ * the file is read with its descriptor, as offsets then lead to rasters
+ * instead of color models. A new reader on an already scanned file starts
+ * with everything other readers have learned about it.
+ * The least recently used indices are evicted when the estimated memory
+ * used by the cache exceeds a configurable limit.
+ *
+ * @author  Thomas Broyer
+ */
+public final class BpiOffsetIndexCache {
+    static public final long DEFAULT_MAX_MEMORY = 4L * 1024 * 1024;
+
+    static private long maxMemory = DEFAULT_MAX_MEMORY;
+    static private long memory = 0;
+
+    static private final Map cache = new LinkedHashMap(16, 0.75F, true);
+
+    /** Not instantiable */
+    private BpiOffsetIndexCache() {
+    }
+
+    /**
+     * Returns the shared index for a file, creating an empty one if needed.
+     *
+     * @param file the image file.
+     * @param withDescriptor whether the file is read with its descriptor.
+     * @return the shared index, or <code>null</code> if the file does not
+     *         exist or the cache is disabled.
+     */
+    static Index getIndex (File file, boolean withDescriptor) {
+	BpiFileKey fileKey = BpiFileKey.forFile(file);
+	if (fileKey == null) {
+	    return null;
+	}
+	Object key = Arrays.asList(new Object[] { fileKey, Boolean.valueOf(withDescriptor) });
+	synchronized (cache) {
+	    if (maxMemory == 0) {
+		return null;
+	    }
+	    Index index = (Index) cache.get(key);
+	    if (index == null) {
+		index = new Index();
+		cache.put(key, index);
+		index.cached = true;
+		grow(index, index.memory);
+	    }
+	    return index;
+	}
+    }
+
+    /**
+     * Sets the maximum estimated memory, in bytes, used by the cache.
+     * A value of <code>0</code> disables the cache.
+     */
+    static public void setMaxMemory (long maxMemory) {
+	if (maxMemory < 0) {
+	    throw new IllegalArgumentException("maxMemory must not be negative.");
+	}
+	synchronized (cache) {
+	    BpiOffsetIndexCache.maxMemory = maxMemory;
+	    evict(null);
+	}
+    }
+
+    static public long getMaxMemory() {
+	synchronized (cache) {
+	    return maxMemory;
+	}
+    }
+
+    /** Returns the estimated memory, in bytes, currently used by the cache. */
+    static public long getMemory() {
+	synchronized (cache) {
+	    return memory;
+	}
+    }
+
+    static public void clear() {
+	synchronized (cache) {
+	    for (Iterator iter = cache.values().iterator(); iter.hasNext(); ) {
+		((Index) iter.next()).cached = false;
+	    }
+	    cache.clear();
+	    memory = 0;
+	}
+    }
+
+    /** Must be called with the cache lock held. */
+    static private void grow (Index index, long size) {
+	memory += size;
+	evict(index);
+    }
+
+    /**
+     * Evicts the least recently used indices until the memory limit is
+     * satisfied, sparing the given index.
+     * Must be called with the cache lock held.
+     */
+    static private void evict (Index spare) {
+	for (Iterator iter = cache.values().iterator(); (memory > maxMemory) && iter.hasNext(); ) {
+	    Index index = (Index) iter.next();
+	    if (index != spare) {
+		iter.remove();
+		index.cached = false;
+		memory -= index.memory;
+	    }
+	}
+    }
+
+    /**
+     * Offsets and color models known for a file.
+     * Entries are only ever appended, as every reader discovers the same ones
+     * in the same order.
+     */
+    static final class Index {
+	private long[] byteOffsets = new long[16];
+	private int[] bitOffsets = new int[16];
+	private int numOffsets = 0;
+	private BpiImageMetadata[] colorModels = new BpiImageMetadata[4];
+	private int numColorModels = 0;
+	private int numImages = -1;
+	private long memory = 64;
+	/** Whether the index is in the cache; guarded by the cache lock. */
+	private boolean cached = false;
+
+	/**
+	 * Copies the known offsets and color models into the given lists.
+	 * @return the number of images, or <code>-1</code> if not yet known.
+	 */
+	synchronized int copyTo (List byteOffsets, List bitOffsets, List colorModels) {
+	    for (int i = byteOffsets.size(); i < numOffsets; i++) {
+		byteOffsets.add(Long.valueOf(this.byteOffsets[i]));
+		bitOffsets.add(Integer.valueOf(this.bitOffsets[i]));
+	    }
+	    for (int i = colorModels.size(); i < numColorModels; i++) {
+		colorModels.add(new BpiImageMetadata(this.colorModels[i]));
+	    }
+	    return numImages;
+	}
+
+	/**
+	 * Appends the offsets and color models that are not known yet.
+	 * @param numImages the number of images, or <code>-1</code> if not yet known.
+	 */
+	void append (List byteOffsets, List bitOffsets, List colorModels, int numImages) {
+	    long size = 0;
+	    synchronized (this) {
+		if ((byteOffsets.size() <= numOffsets) && (colorModels.size() <= numColorModels)
+			&& ((numImages < 0) || (this.numImages >= 0))) {
+		    return;
+		}
+		for (int i = numOffsets; i < byteOffsets.size(); i++) {
+		    if (numOffsets == this.byteOffsets.length) {
+			long[] newByteOffsets = new long[numOffsets * 2];
+			System.arraycopy(this.byteOffsets, 0, newByteOffsets, 0, numOffsets);
+			this.byteOffsets = newByteOffsets;
+			int[] newBitOffsets = new int[numOffsets * 2];
+			System.arraycopy(this.bitOffsets, 0, newBitOffsets, 0, numOffsets);
+			this.bitOffsets = newBitOffsets;
+		    }
+		    this.byteOffsets[numOffsets] = ((Long) byteOffsets.get(i)).longValue();
+		    this.bitOffsets[numOffsets] = ((Integer) bitOffsets.get(i)).intValue();
+		    numOffsets++;
+		    size += 12;
+		}
+		for (int i = numColorModels; i < colorModels.size(); i++) {
+		    if (numColorModels == this.colorModels.length) {
+			BpiImageMetadata[] newColorModels = new BpiImageMetadata[numColorModels * 2];
+			System.arraycopy(this.colorModels, 0, newColorModels, 0, numColorModels);
+			this.colorModels = newColorModels;
+		    }
+		    BpiImageMetadata metadata = new BpiImageMetadata((BpiImageMetadata) colorModels.get(i));
+		    this.colorModels[numColorModels++] = metadata;
+		    size += 64 + ((metadata.palette == null) ? 0 : 4 * metadata.palette.length);
+		}
+		if (numImages >= 0) {
+		    this.numImages = numImages;
+		}
+		memory += size;
+	    }
+	    synchronized (cache) {
+		if (cached) {
+		    grow(this, size);
+		}
+	    }
+	}
+    }
+}
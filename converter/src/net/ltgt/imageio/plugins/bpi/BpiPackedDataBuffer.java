@@ -0,0 +1,143 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.awt.image.DataBuffer;
+import java.util.Arrays;
+
+/**
+ * DataBuffer holding bit-packed pixels, as they are stored in a BPI raster.
+ *
+ * Each element is one pixel of <code>bitsPerPixel</code> bits, the most
+ * significant bit first; pixels are only unpacked when they are accessed,
+ * so the buffer costs no more memory than the encoded raster.
+ *
+ * @author  Thomas Broyer
+ */
+public final class BpiPackedDataBuffer extends DataBuffer {
+    private final byte[] data;
+    private final int bitOffset;
+    private final int bitsPerPixel;
+    private final int mask;
+
+    /**
+     * Creates a new instance of BpiPackedDataBuffer, with all pixels set to 0.
+     *
+     * @param dataType the data type of the elements, as returned by the raster.
+     * @param bitsPerPixel the number of bits per pixel, at most 24.
+     * @param size the number of pixels.
+     */
+    public BpiPackedDataBuffer (int dataType, int bitsPerPixel, int size) {
+	this(dataType, new byte[(int) (((long) size * bitsPerPixel + 7) >>> 3)], 0, bitsPerPixel, size);
+    }
+
+    /**
+     * Creates a new instance of BpiPackedDataBuffer wrapping packed pixels.
+     * The array is not copied.
+     *
+     * @param dataType the data type of the elements, as returned by the raster.
+     * @param data the packed pixels.
+     * @param bitOffset the offset, in bits, of the first pixel in <code>data</code>.
+     * @param bitsPerPixel the number of bits per pixel, at most 24.
+     * @param size the number of pixels.
+     */
+    public BpiPackedDataBuffer (int dataType, byte[] data, int bitOffset, int bitsPerPixel, int size) {
+	super(dataType, size);
+	if ((bitsPerPixel < 0) || (bitsPerPixel > BpiImageFormat.MAX_BITS_PER_COLOR)) {
+	    throw new IllegalArgumentException("bitsPerPixel must be between 0 and "
+		+ BpiImageFormat.MAX_BITS_PER_COLOR);
+	}
+	if ((bitOffset < 0) || (bitOffset + (long) size * bitsPerPixel > (long) data.length * 8)) {
+	    throw new IllegalArgumentException("data is too small to hold " + size + " pixels");
+	}
+	this.data = data;
+	this.bitOffset = bitOffset;
+	this.bitsPerPixel = bitsPerPixel;
+	this.mask = (1 << bitsPerPixel) - 1;
+    }
+
+    /** Returns the packed pixels. */
+    public byte[] getData() {
+	return data;
+    }
+
+    /** Returns the offset, in bits, of the first pixel in the data array. */
+    public int getBitOffset() {
+	return bitOffset;
+    }
+
+    public int getBitsPerPixel() {
+	return bitsPerPixel;
+    }
+
+    public int getElem (int bank, int i) {
+	if (bitsPerPixel == 0)
+	    return 0;
+	long pos = bitOffset + (long) i * bitsPerPixel;
+	int index = (int) (pos >>> 3);
+	int end = (int) (pos & 7) + bitsPerPixel;
+	long bits = 0;
+	for (int k = index, last = index + ((end + 7) >>> 3); k < last; k++) {
+	    bits = (bits << 8) | (data[k] & 0xFF);
+	}
+	return (int) (bits >>> ((-end) & 7)) & mask;
+    }
+
+    public void setElem (int bank, int i, int val) {
+	if (bitsPerPixel == 0)
+	    return;
+	long pos = bitOffset + (long) i * bitsPerPixel;
+	int index = (int) (pos >>> 3);
+	int end = (int) (pos & 7) + bitsPerPixel;
+	int numBytes = (end + 7) >>> 3;
+	long bits = 0;
+	for (int k = 0; k < numBytes; k++) {
+	    bits = (bits << 8) | (data[index + k] & 0xFF);
+	}
+	int shift = (-end) & 7;
+	bits = (bits & ~((long) mask << shift)) | ((long) (val & mask) << shift);
+	for (int k = numBytes - 1; k >= 0; k--) {
+	    data[index + k] = (byte) bits;
+	    bits >>>= 8;
+	}
+    }
+
+    /**
+     * Unpacks consecutive pixels, in bulk.
+     *
+     * @param i the index of the first pixel.
+     * @param dst the array receiving one pixel per element.
+     * @param offset the index of the first pixel in <code>dst</code>.
+     * @param count the number of pixels to unpack.
+     */
+    public void getElems (int i, int[] dst, int offset, int count) {
+	if ((i < 0) || (count < 0) || (i + count > getSize())) {
+	    throw new ArrayIndexOutOfBoundsException("Pixels out of the buffer bounds.");
+	}
+	if (bitsPerPixel == 0) {
+	    Arrays.fill(dst, offset, offset + count, 0);
+	    return;
+	}
+	long pos = bitOffset + (long) i * bitsPerPixel;
+	BpiCodec.unpackPixels(data, (int) (pos >>> 3), (int) (pos & 7), bitsPerPixel, dst, offset, count);
+    }
+}
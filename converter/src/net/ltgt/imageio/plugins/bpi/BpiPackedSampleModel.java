@@ -0,0 +1,127 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * SampleModel for rasters backed by a {@link BpiPackedDataBuffer}.
+ *
+ * Pixels are laid out as in any <code>SinglePixelPackedSampleModel</code>
+ * (so that the BPI color models accept the raster), but rows of pixels
+ * are unpacked in bulk when the data buffer holds packed pixels.
+ *
+ * @author  Thomas Broyer
+ */
+public class BpiPackedSampleModel extends SinglePixelPackedSampleModel {
+    private final int bitsPerPixel;
+
+    /** Creates a new instance of BpiPackedSampleModel */
+    public BpiPackedSampleModel (int dataType, int w, int h, int bitsPerPixel, int[] bitMasks) {
+	super(dataType, w, h, bitMasks);
+	this.bitsPerPixel = bitsPerPixel;
+    }
+
+    public int getBitsPerPixel() {
+	return bitsPerPixel;
+    }
+
+    public SampleModel createCompatibleSampleModel (int w, int h) {
+	return new BpiPackedSampleModel(getDataType(), w, h, bitsPerPixel, getBitMasks());
+    }
+
+    public DataBuffer createDataBuffer() {
+	return new BpiPackedDataBuffer(getDataType(), bitsPerPixel,
+	    getScanlineStride() * (height - 1) + width);
+    }
+
+    public int[] getPixels (int x, int y, int w, int h, int[] iArray, DataBuffer data) {
+	if (!(data instanceof BpiPackedDataBuffer)) {
+	    return super.getPixels(x, y, w, h, iArray, data);
+	}
+	checkBounds(x, y, w, h);
+	int numBands = getNumBands();
+	int[] pixels = (iArray != null) ? iArray : new int[w * h * numBands];
+	int[] row = (numBands == 1) ? pixels : new int[w];
+	int[] masks = getBitMasks();
+	int[] offsets = getBitOffsets();
+	int dstOffset = 0;
+	for (int i = 0; i < h; i++) {
+	    if (numBands == 1) {
+		((BpiPackedDataBuffer) data).getElems(getOffset(x, y + i), pixels, dstOffset, w);
+		if (masks[0] != (1 << bitsPerPixel) - 1) {
+		    for (int j = dstOffset; j < dstOffset + w; j++) {
+			pixels[j] = (pixels[j] & masks[0]) >>> offsets[0];
+		    }
+		}
+		dstOffset += w;
+	    } else {
+		((BpiPackedDataBuffer) data).getElems(getOffset(x, y + i), row, 0, w);
+		for (int j = 0; j < w; j++) {
+		    int pixel = row[j];
+		    for (int b = 0; b < numBands; b++) {
+			pixels[dstOffset++] = (pixel & masks[b]) >>> offsets[b];
+		    }
+		}
+	    }
+	}
+	return pixels;
+    }
+
+    public int[] getSamples (int x, int y, int w, int h, int b, int[] iArray, DataBuffer data) {
+	if (!(data instanceof BpiPackedDataBuffer)) {
+	    return super.getSamples(x, y, w, h, b, iArray, data);
+	}
+	checkBounds(x, y, w, h);
+	int[] samples = (iArray != null) ? iArray : new int[w * h];
+	int mask = getBitMasks()[b];
+	int offset = getBitOffsets()[b];
+	int dstOffset = 0;
+	for (int i = 0; i < h; i++) {
+	    ((BpiPackedDataBuffer) data).getElems(getOffset(x, y + i), samples, dstOffset, w);
+	    for (int j = dstOffset; j < dstOffset + w; j++) {
+		samples[j] = (samples[j] & mask) >>> offset;
+	    }
+	    dstOffset += w;
+	}
+	return samples;
+    }
+
+    public boolean equals (Object o) {
+	if (!(o instanceof BpiPackedSampleModel)) {
+	    return false;
+	}
+	return super.equals(o) && (bitsPerPixel == ((BpiPackedSampleModel) o).bitsPerPixel);
+    }
+
+    public int hashCode() {
+	return super.hashCode() ^ bitsPerPixel;
+    }
+
+    private void checkBounds (int x, int y, int w, int h) {
+	if ((x < 0) || (y < 0) || (w < 0) || (h < 0) || (x + w > width) || (y + h > height)) {
+	    throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+	}
+    }
+}
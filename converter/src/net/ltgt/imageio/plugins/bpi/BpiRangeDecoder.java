@@ -0,0 +1,85 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.IOException;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Adaptive binary range decoder, reading what {@link BpiRangeEncoder}
+ * writes, with probabilities evolving the same way.
+ *
+ * @author  Thomas Broyer
+ */
+final class BpiRangeDecoder {
+    private final ImageInputStream stream;
+    private int range = 0xFFFFFFFF;
+    private int code = 0;
+
+    /**
+     * Creates a new instance of BpiRangeDecoder, reading the first bytes of
+     * the code from the current stream position.
+     */
+    BpiRangeDecoder (ImageInputStream stream) throws IOException {
+	this.stream = stream;
+	for (int i = 0; i < 5; i++) {
+	    code = (code << 8) | readByte();
+	}
+    }
+
+    int decodeBit (short[] probs, int index) throws IOException {
+	int prob = probs[index];
+	int bound = (range >>> BpiRangeEncoder.PROBABILITY_BITS) * prob;
+	int bit;
+	if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+	    range = bound;
+	    probs[index] = (short) (prob + ((BpiRangeEncoder.PROBABILITY_ONE - prob) >>> BpiRangeEncoder.MOVE_BITS));
+	    bit = 0;
+	} else {
+	    range -= bound;
+	    code -= bound;
+	    probs[index] = (short) (prob - (prob >>> BpiRangeEncoder.MOVE_BITS));
+	    bit = 1;
+	}
+	if ((range & 0xFF000000) == 0) {
+	    code = (code << 8) | readByte();
+	    range <<= 8;
+	}
+	return bit;
+    }
+
+    /**
+     * Decodes a value encoded with {@link BpiRangeEncoder#encodeTree}.
+     */
+    int decodeTree (short[] probs, int numBits) throws IOException {
+	int m = 1;
+	for (int i = 0; i < numBits; i++) {
+	    m = (m << 1) | decodeBit(probs, m);
+	}
+	return m - (1 << numBits);
+    }
+
+    private int readByte() throws IOException {
+	return (int) stream.readBits(8);
+    }
+}
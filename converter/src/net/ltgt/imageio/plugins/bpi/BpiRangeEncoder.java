@@ -0,0 +1,130 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.io.IOException;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Adaptive binary range encoder.
+ *
+ * Each bit is coded with a probability, out of <code>PROBABILITY_ONE</code>,
+ * of being zero, which is then adapted to the coded bit. Probabilities are
+ * kept by the caller, in arrays of shorts initialized with
+ * {@link #initProbabilities}. Bytes are written as they come out of the
+ * coder, at any bit offset of the stream.
+ *
+ * @author  Thomas Broyer
+ */
+final class BpiRangeEncoder {
+    static final int PROBABILITY_BITS = 11;
+    static final int PROBABILITY_ONE = 1 << PROBABILITY_BITS;
+    /** Adaptation speed: probabilities move by 1/32 of their distance to the coded bit. */
+    static final int MOVE_BITS = 5;
+
+    private final ImageOutputStream stream;
+    private long low = 0;
+    private int range = 0xFFFFFFFF;
+    private int cache = 0;
+    private long cacheSize = 1;
+    private long numBytes = 0;
+
+    /**
+     * Creates a new instance of BpiRangeEncoder
+     * @param stream the stream to write to, or <code>null</code> to only
+     *	count the encoded bytes.
+     */
+    BpiRangeEncoder (ImageOutputStream stream) {
+	this.stream = stream;
+    }
+
+    static void initProbabilities (short[] probs) {
+	for (int i = 0; i < probs.length; i++) {
+	    probs[i] = (short) (PROBABILITY_ONE >>> 1);
+	}
+    }
+
+    void encodeBit (short[] probs, int index, int bit) throws IOException {
+	int prob = probs[index];
+	int bound = (range >>> PROBABILITY_BITS) * prob;
+	if (bit == 0) {
+	    range = bound;
+	    probs[index] = (short) (prob + ((PROBABILITY_ONE - prob) >>> MOVE_BITS));
+	} else {
+	    low += bound & 0xFFFFFFFFL;
+	    range -= bound;
+	    probs[index] = (short) (prob - (prob >>> MOVE_BITS));
+	}
+	while ((range & 0xFF000000) == 0) {
+	    range <<= 8;
+	    shiftLow();
+	}
+    }
+
+    /**
+     * Encodes the bits of a value, most significant first, each one with
+     * the probability of its prefix in a tree of <code>1 &lt;&lt; numBits</code>
+     * probabilities.
+     */
+    void encodeTree (short[] probs, int numBits, int value) throws IOException {
+	int m = 1;
+	for (int i = numBits - 1; i >= 0; i--) {
+	    int bit = (value >>> i) & 1;
+	    encodeBit(probs, m, bit);
+	    m = (m << 1) | bit;
+	}
+    }
+
+    /** Writes the last bytes of the code. */
+    void flush() throws IOException {
+	for (int i = 0; i < 5; i++) {
+	    shiftLow();
+	}
+    }
+
+    /** Returns the number of bytes written so far. */
+    long getNumBytes() {
+	return numBytes;
+    }
+
+    private void shiftLow() throws IOException {
+	int lowHi = (int) (low >>> 32);
+	if ((lowHi != 0) || (low < 0xFF000000L)) {
+	    int temp = cache;
+	    do {
+		writeByte((temp + lowHi) & 0xFF);
+		temp = 0xFF;
+	    } while (--cacheSize != 0);
+	    cache = (int) (low >>> 24) & 0xFF;
+	}
+	cacheSize++;
+	low = (low & 0x00FFFFFFL) << 8;
+    }
+
+    private void writeByte (int b) throws IOException {
+	if (stream != null) {
+	    stream.writeBits(b, 8);
+	}
+	numBytes++;
+    }
+}
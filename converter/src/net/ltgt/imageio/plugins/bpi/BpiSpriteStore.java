@@ -0,0 +1,367 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.awt.Point;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PackedColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Store of decoded BPI images (sprites) kept outside of the Java heap.
+ *
+ * Sprites are decoded into large direct buffers (slabs), either as 32-bit
+ * ARGB pixels or as raw BPI pixels (one 8, 16 or 32-bit element per pixel,
+ * to be interpreted with the sprite color model). Only a compact index of
+ * the sprites and their color models live on the heap.
+ * Pixels can be copied out as ARGB, or sprites can be wrapped as a
+ * <code>Raster</code> reading directly from the store.
+ *
+ * The store is not thread-safe while adding sprites; reading from it
+ * concurrently is safe once sprites have been added.
+ *
+ * @author  Thomas Broyer
+ */
+public class BpiSpriteStore {
+    /** Sprites are stored as 32-bit ARGB pixels. */
+    static public final int TYPE_ARGB = 0;
+    /** Sprites are stored as raw BPI pixels. */
+    static public final int TYPE_RAW = 1;
+
+    static public final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    private final int type;
+    private final int slabSize;
+
+    /** List of direct ByteBuffers */
+    private final List slabs = new ArrayList();
+    private ByteBuffer currentSlab = null;
+
+    // Sprite index
+    private int numSprites = 0;
+    private int[] slab = new int[64];
+    private int[] offset = new int[64];
+    private int[] width = new int[64];
+    private int[] height = new int[64];
+    private byte[] elementSize = new byte[64];
+    private ColorModel[] colorModels = new ColorModel[64];
+
+    /** Number of pixels decoded at once */
+    static private final int BAND_SIZE = 16 * 1024;
+    /** Band buffer used while decoding */
+    private int[] band = null;
+
+    /**
+     * Creates a new instance of BpiSpriteStore
+     * @param type <code>TYPE_ARGB</code> or <code>TYPE_RAW</code>.
+     */
+    public BpiSpriteStore (int type) {
+	this(type, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Creates a new instance of BpiSpriteStore
+     * @param type <code>TYPE_ARGB</code> or <code>TYPE_RAW</code>.
+     * @param slabSize the size, in bytes, of the direct buffers to allocate.
+     *        Sprites larger than a slab get a buffer of their own.
+     */
+    public BpiSpriteStore (int type, int slabSize) {
+	if ((type != TYPE_ARGB) && (type != TYPE_RAW)) {
+	    throw new IllegalArgumentException("Unknown type: " + type);
+	}
+	if (slabSize <= 0) {
+	    throw new IllegalArgumentException("slabSize must be positive.");
+	}
+	this.type = type;
+	this.slabSize = slabSize;
+    }
+
+    public int getType() {
+	return type;
+    }
+
+    /**
+     * Decodes an image into the store.
+     *
+     * @param reader the reader, whose input has been set.
+     * @param imageIndex the index of the image to decode.
+     * @return the identifier of the sprite.
+     */
+    public int add (BpiImageReader reader, int imageIndex) throws IOException {
+	BpiImageMetadata metadata = (BpiImageMetadata) reader.getImageMetadata(imageIndex);
+	ColorModel cm = metadata.createCompatibleColorModel();
+	int w = reader.getWidth(imageIndex);
+	int h = reader.getHeight(imageIndex);
+
+	int size;
+	if (type == TYPE_ARGB) {
+	    size = 4;
+	} else if (metadata.bitsPerPixel <= 8) {
+	    size = 1;
+	} else if (metadata.bitsPerPixel <= 16) {
+	    size = 2;
+	} else {
+	    size = 4;
+	}
+	ByteBuffer buffer = allocate(w * h * size);
+	int start = buffer.position();
+
+	int bandHeight = Math.max(1, Math.min(h, BAND_SIZE / w));
+	if ((band == null) || (band.length < w * bandHeight)) {
+	    band = new int[w * bandHeight];
+	}
+	for (int y = 0; y < h; y += bandHeight) {
+	    int numRows = Math.min(bandHeight, h - y);
+	    reader.readRawRows(imageIndex, y, numRows, band, 0);
+	    for (int i = 0; i < w * numRows; i++) {
+		int pixel = band[i];
+		switch (size) {
+		    case 1:
+			buffer.put((byte) pixel);
+			break;
+		    case 2:
+			buffer.putShort((short) pixel);
+			break;
+		    default:
+			buffer.putInt((type == TYPE_ARGB) ? cm.getRGB(pixel) : pixel);
+		}
+	    }
+	}
+
+	int id = numSprites;
+	if (id == slab.length) {
+	    grow();
+	}
+	slab[id] = slabs.size() - 1;
+	offset[id] = start;
+	width[id] = w;
+	height[id] = h;
+	elementSize[id] = (byte) size;
+	colorModels[id] = (type == TYPE_ARGB) ? ColorModel.getRGBdefault() : cm;
+	numSprites++;
+	return id;
+    }
+
+    /**
+     * Decodes every image of the reader input into the store.
+     *
+     * @param reader the reader, whose input has been set.
+     * @return the identifier of the first sprite; the following images get
+     *         consecutive identifiers.
+     */
+    public int addAll (BpiImageReader reader) throws IOException {
+	int first = numSprites;
+	int n = reader.getNumImages(true);
+	for (int i = 0; i < n; i++) {
+	    add(reader, i);
+	}
+	return first;
+    }
+
+    public int getNumSprites() {
+	return numSprites;
+    }
+
+    public int getWidth (int id) {
+	checkId(id);
+	return width[id];
+    }
+
+    public int getHeight (int id) {
+	checkId(id);
+	return height[id];
+    }
+
+    /**
+     * Returns the color model to interpret the sprite pixels with: the default
+     * ARGB color model for <code>TYPE_ARGB</code> stores, the BPI color model
+     * of the image for <code>TYPE_RAW</code> stores.
+     */
+    public ColorModel getColorModel (int id) {
+	checkId(id);
+	return colorModels[id];
+    }
+
+    /** Returns the total size, in bytes, of the direct buffers allocated. */
+    public long getCapacity() {
+	long capacity = 0;
+	for (int i = 0; i < slabs.size(); i++) {
+	    capacity += ((ByteBuffer) slabs.get(i)).capacity();
+	}
+	return capacity;
+    }
+
+    /**
+     * Copies ARGB pixels of a sprite, similarly to
+     * <code>BufferedImage.getRGB</code>.
+     *
+     * @param id the sprite identifier.
+     * @param x the x coordinate of the first pixel to copy.
+     * @param y the y coordinate of the first pixel to copy.
+     * @param w the width of the region to copy.
+     * @param h the height of the region to copy.
+     * @param rgbArray the destination array.
+     * @param offset the index of the first pixel in <code>rgbArray</code>.
+     * @param scansize the scanline stride of <code>rgbArray</code>.
+     */
+    public void getRGB (int id, int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+	checkId(id);
+	if ((x < 0) || (y < 0) || (x + w > width[id]) || (y + h > height[id])) {
+	    throw new IndexOutOfBoundsException("Region out of the sprite bounds.");
+	}
+	ByteBuffer buffer = (ByteBuffer) slabs.get(slab[id]);
+	ColorModel cm = colorModels[id];
+	int size = elementSize[id];
+	int stride = width[id];
+	for (int j = 0; j < h; j++) {
+	    int src = this.offset[id] + ((y + j) * stride + x) * size;
+	    int dst = offset + j * scansize;
+	    for (int i = 0; i < w; i++, src += size) {
+		switch (size) {
+		    case 1:
+			rgbArray[dst + i] = cm.getRGB(buffer.get(src) & 0xFF);
+			break;
+		    case 2:
+			rgbArray[dst + i] = cm.getRGB(buffer.getShort(src) & 0xFFFF);
+			break;
+		    default:
+			int pixel = buffer.getInt(src);
+			rgbArray[dst + i] = (type == TYPE_ARGB) ? pixel : cm.getRGB(pixel);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Wraps a sprite as a raster reading its pixels from the store.
+     * Changes to the raster are written to the store.
+     * The raster must be interpreted with the sprite color model.
+     *
+     * @param id the sprite identifier.
+     * @return the raster.
+     * @see #getColorModel(int)
+     */
+    public WritableRaster getRaster (int id) {
+	checkId(id);
+	int size = elementSize[id];
+	int dataType = (size == 1) ? DataBuffer.TYPE_BYTE
+	    : (size == 2) ? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_INT;
+	int[] masks;
+	ColorModel cm = colorModels[id];
+	if (cm instanceof PackedColorModel) {
+	    masks = ((PackedColorModel) cm).getMasks();
+	} else {
+	    masks = new int[] { (1 << cm.getPixelSize()) - 1 };
+	}
+	SampleModel sm = new SinglePixelPackedSampleModel(dataType, width[id], height[id], masks);
+	ByteBuffer buffer = (ByteBuffer) slabs.get(slab[id]);
+	DataBuffer db = new DirectDataBuffer(dataType, buffer, offset[id], size, width[id] * height[id]);
+	return Raster.createWritableRaster(sm, db, new Point(0, 0));
+    }
+
+    private ByteBuffer allocate (int size) {
+	if ((currentSlab == null) || (currentSlab.remaining() < size)) {
+	    ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(size, slabSize));
+	    buffer.order(ByteOrder.nativeOrder());
+	    slabs.add(buffer);
+	    currentSlab = buffer;
+	}
+	return currentSlab;
+    }
+
+    private void grow() {
+	int n = slab.length * 2;
+	slab = grow(slab, n);
+	offset = grow(offset, n);
+	width = grow(width, n);
+	height = grow(height, n);
+	byte[] sizes = new byte[n];
+	System.arraycopy(elementSize, 0, sizes, 0, numSprites);
+	elementSize = sizes;
+	ColorModel[] cms = new ColorModel[n];
+	System.arraycopy(colorModels, 0, cms, 0, numSprites);
+	colorModels = cms;
+    }
+
+    private int[] grow (int[] array, int n) {
+	int[] tmp = new int[n];
+	System.arraycopy(array, 0, tmp, 0, numSprites);
+	return tmp;
+    }
+
+    private void checkId (int id) {
+	if ((id < 0) || (id >= numSprites)) {
+	    throw new IndexOutOfBoundsException("Unknown sprite: " + id);
+	}
+    }
+
+    /**
+     * DataBuffer over a region of a direct buffer, one element per pixel.
+     */
+    static private class DirectDataBuffer extends DataBuffer {
+	private final ByteBuffer buffer;
+	private final int base;
+	private final int elementSize;
+
+	DirectDataBuffer (int dataType, ByteBuffer buffer, int base, int elementSize, int size) {
+	    super(dataType, size);
+	    this.buffer = buffer;
+	    this.base = base;
+	    this.elementSize = elementSize;
+	}
+
+	public int getElem (int bank, int i) {
+	    int index = base + (i + offset) * elementSize;
+	    switch (elementSize) {
+		case 1:
+		    return buffer.get(index) & 0xFF;
+		case 2:
+		    return buffer.getShort(index) & 0xFFFF;
+		default:
+		    return buffer.getInt(index);
+	    }
+	}
+
+	public void setElem (int bank, int i, int val) {
+	    int index = base + (i + offset) * elementSize;
+	    switch (elementSize) {
+		case 1:
+		    buffer.put(index, (byte) val);
+		    break;
+		case 2:
+		    buffer.putShort(index, (short) val);
+		    break;
+		default:
+		    buffer.putInt(index, val);
+	    }
+	}
+    }
+}
@@ -68,6 +68,7 @@ public class BpiStreamMetadata extends IIOMetadata implements Cloneable {
 	    }
 	}
 	colormodels = (IntegerSet) metadata.colormodels.clone();
+	rasters = (IntegerSet) metadata.rasters.clone();
     }
 
 /* old-way storage
@@ -456,7 +457,7 @@ public class BpiStreamMetadata extends IIOMetadata implements Cloneable {
 	int index = 0;
 	for (int rasterIndex = 0; rasterIndex < rasters.size(); rasterIndex++) {
 	    IntegerSet cms = (IntegerSet) blocks.get(rasters.get(rasterIndex));
-	    if (index + cms.size() >= imageIndex) {
+	    if (index + cms.size() > imageIndex) {
 		return new int[] { cms.get(imageIndex - index), rasterIndex };
 	    }
 	    index += cms.size();
@@ -0,0 +1,217 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Image whose tiles are decoded by a {@link BpiImageReader} when they are
+ * first requested.
+ *
+ * Decoded tiles are kept in a least-recently-used cache holding at most
+ * <code>maxTiles</code> tiles, so that memory and decoding time only
+ * depend on the area actually used.
+ *
+ * @author  Thomas Broyer
+ */
+class BpiTiledImage implements RenderedImage {
+    /** Default width and height of the tiles. */
+    static final int DEFAULT_TILE_SIZE = 64;
+    /** Default number of decoded tiles kept in memory. */
+    static final int DEFAULT_MAX_TILES = 64;
+
+    private final BpiImageReader reader;
+    private final int imageIndex;
+    private final int width;
+    private final int height;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int numXTiles;
+    private final int numYTiles;
+    private final LinkedHashMap tiles;
+
+    /** Creates a new instance of BpiTiledImage */
+    BpiTiledImage (BpiImageReader reader, int imageIndex, int width, int height,
+	    ColorModel colorModel, int tileWidth, int tileHeight, final int maxTiles) {
+	this.reader = reader;
+	this.imageIndex = imageIndex;
+	this.width = width;
+	this.height = height;
+	this.colorModel = colorModel;
+	this.tileWidth = Math.min(tileWidth, width);
+	this.tileHeight = Math.min(tileHeight, height);
+	this.sampleModel = colorModel.createCompatibleSampleModel(this.tileWidth, this.tileHeight);
+	this.numXTiles = (width + this.tileWidth - 1) / this.tileWidth;
+	this.numYTiles = (height + this.tileHeight - 1) / this.tileHeight;
+	this.tiles = new LinkedHashMap(16, 0.75f, true) {
+	    protected boolean removeEldestEntry (Map.Entry eldest) {
+		return size() > maxTiles;
+	    }
+	};
+    }
+
+    public Vector getSources() {
+	return null;
+    }
+
+    public Object getProperty (String name) {
+	return Image.UndefinedProperty;
+    }
+
+    public String[] getPropertyNames() {
+	return null;
+    }
+
+    public ColorModel getColorModel() {
+	return colorModel;
+    }
+
+    public SampleModel getSampleModel() {
+	return sampleModel;
+    }
+
+    public int getWidth() {
+	return width;
+    }
+
+    public int getHeight() {
+	return height;
+    }
+
+    public int getMinX() {
+	return 0;
+    }
+
+    public int getMinY() {
+	return 0;
+    }
+
+    public int getNumXTiles() {
+	return numXTiles;
+    }
+
+    public int getNumYTiles() {
+	return numYTiles;
+    }
+
+    public int getMinTileX() {
+	return 0;
+    }
+
+    public int getMinTileY() {
+	return 0;
+    }
+
+    public int getTileWidth() {
+	return tileWidth;
+    }
+
+    public int getTileHeight() {
+	return tileHeight;
+    }
+
+    public int getTileGridXOffset() {
+	return 0;
+    }
+
+    public int getTileGridYOffset() {
+	return 0;
+    }
+
+    public Raster getTile (int tileX, int tileY) {
+	if ((tileX < 0) || (tileY < 0) || (tileX >= numXTiles) || (tileY >= numYTiles)) {
+	    throw new IllegalArgumentException("Tile index out of bounds.");
+	}
+	Integer key = new Integer(tileY * numXTiles + tileX);
+	synchronized (tiles) {
+	    Raster tile = (Raster) tiles.get(key);
+	    if (tile != null) {
+		return tile;
+	    }
+	}
+	Raster tile = decodeTile(tileX, tileY);
+	synchronized (tiles) {
+	    tiles.put(key, tile);
+	}
+	return tile;
+    }
+
+    public Raster getData() {
+	return getData(new Rectangle(0, 0, width, height));
+    }
+
+    public Raster getData (Rectangle rect) {
+	SampleModel sm = sampleModel.createCompatibleSampleModel(rect.width, rect.height);
+	WritableRaster raster = Raster.createWritableRaster(sm, new Point(rect.x, rect.y));
+	return copyData(raster);
+    }
+
+    public WritableRaster copyData (WritableRaster raster) {
+	if (raster == null) {
+	    return (WritableRaster) getData();
+	}
+	Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+	if (bounds.isEmpty()) {
+	    return raster;
+	}
+	int minTileX = bounds.x / tileWidth;
+	int maxTileX = (bounds.x + bounds.width - 1) / tileWidth;
+	int minTileY = bounds.y / tileHeight;
+	int maxTileY = (bounds.y + bounds.height - 1) / tileHeight;
+	for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+	    for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+		Raster tile = getTile(tileX, tileY);
+		Rectangle r = tile.getBounds().intersection(bounds);
+		raster.setRect(tile.createChild(r.x, r.y, r.width, r.height, r.x, r.y, null));
+	    }
+	}
+	return raster;
+    }
+
+    private Raster decodeTile (int tileX, int tileY) {
+	// tiles on the right and bottom edges extend past the image bounds
+	WritableRaster tile = Raster.createWritableRaster(sampleModel,
+	    new Point(tileX * tileWidth, tileY * tileHeight));
+	Rectangle region = tile.getBounds().intersection(new Rectangle(0, 0, width, height));
+	try {
+	    synchronized (reader) {
+		reader.readRegion(imageIndex, region, tile);
+	    }
+	} catch (IOException ioe) {
+	    throw new RuntimeException("Unable to decode tile (" + tileX + ", " + tileY + ")", ioe);
+	}
+	return tile;
+    }
+}
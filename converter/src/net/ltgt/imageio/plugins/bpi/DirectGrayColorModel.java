@@ -267,7 +267,7 @@ public class DirectGrayColorModel extends PackedColorModel {
 	    return false;
 	}
 
-	return (raster.getTransferType() != transferType);
+	return (raster.getTransferType() == transferType);
     }
 
     public ColorModel coerceData (WritableRaster raster, boolean isAlphaPremultiplied) {
@@ -0,0 +1,115 @@
+/*
+ * Bpi Image/IO - a Bit-Packed Image codec for Image/IO
+ *
+ * Copyright (C) 2004  Thomas Broyer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.ltgt.imageio.plugins.bpi;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+
+/**
+ * Checks that <code>readPacked</code> returns the same pixels as
+ * <code>read</code>, for every depth, in containers with and without aligned
+ * rows, whether the raster was read before or not.
+ *
+ * Widths that are not a multiple of 8 pixels have padding bits at the end of
+ * aligned rows, which the packed raster must skip.
+ * Exits with a non-zero status if any pixel differs.
+ *
+ * @author Thomas Broyer
+ */
+public class PackedReadCheck {
+
+    static private final int[] WIDTHS = { 8, 13, 16 };
+    static private final int HEIGHT = 5;
+
+    private PackedReadCheck() {
+    }
+
+    static private BufferedImage createImage (int depth, int width, Random random) {
+	ColorModel cm = new BpiImageMetadata(depth).createCompatibleColorModel();
+	WritableRaster raster = cm.createCompatibleWritableRaster(width, HEIGHT);
+	int[] sampleSize = raster.getSampleModel().getSampleSize();
+	for (int y = 0; y < HEIGHT; y++) {
+	    for (int x = 0; x < width; x++) {
+		for (int b = 0; b < sampleSize.length; b++) {
+		    raster.setSample(x, y, b, random.nextInt(1 << sampleSize[b]));
+		}
+	    }
+	}
+	return new BufferedImage(cm, raster, false, null);
+    }
+
+    static private int countDifferences (BufferedImage expected, BufferedImage actual) {
+	int count = 0;
+	for (int y = 0; y < expected.getHeight(); y++) {
+	    for (int x = 0; x < expected.getWidth(); x++) {
+		if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+		    count++;
+		}
+	    }
+	}
+	return count;
+    }
+
+    /**
+     * @param args the command line arguments, unused.
+     */
+    public static void main (String args[]) throws Exception {
+	Random random = new Random(0);
+	int failures = 0;
+	for (int depth = 0; depth < 16; depth++) {
+	    for (int i = 0; i < WIDTHS.length; i++) {
+		for (int aligned = 0; aligned < 2; aligned++) {
+		    BufferedImage image = createImage(depth, WIDTHS[i], random);
+		    BpiImageWriter writer = (BpiImageWriter) ImageIO.getImageWritersByFormatName("bpi").next();
+		    BpiImageWriteParam param = (BpiImageWriteParam) writer.getDefaultWriteParam();
+		    param.setWriteContainer(true);
+		    param.setAlignRows(aligned != 0);
+		    byte[] data = writer.encode(new IIOImage(image, null, null), param);
+
+		    BpiImageReader reader = (BpiImageReader) ImageIO.getImageReadersByFormatName("bpi").next();
+		    reader.setInput(data);
+		    BufferedImage expected = reader.read(0);
+		    // the raster has been read: its offset is known
+		    int afterRead = countDifferences(expected, reader.readPacked(0));
+		    reader.setInput(data);
+		    // the raster has to be found first
+		    int fresh = countDifferences(expected, reader.readPacked(0));
+
+		    if ((afterRead != 0) || (fresh != 0)) {
+			System.err.println("depth " + depth + ", width " + WIDTHS[i]
+			    + ((aligned != 0) ? ", aligned rows" : "")
+			    + ": " + afterRead + " pixels differ after read, "
+			    + fresh + " pixels differ when read first.");
+			failures++;
+		    }
+		}
+	    }
+	}
+	if (failures != 0) {
+	    System.exit(1);
+	}
+	System.out.println("OK");
+    }
+}
@@ -64,6 +64,11 @@ public class BpiDecoder {
     static private final int MIN_DEPTH_TO_USE_PALETTE = 1;
     static private final int DIMENSION_SIZE = 9;
     static private final int MIN_DIMENSION = 1;
+    static private final int RASTER_COMPRESSION_SIZE = 2;
+    static private final int COMPRESSION_NONE = 0;
+    static private final int COMPRESSION_RLE = 1;
+    static private final int RUN_LENGTH_SIZE = 7;
+    static private final int MIN_RUN_LENGTH = 1;
 
     static private final int TRANSPARENT_COLOR = 0;
 
@@ -85,6 +90,20 @@ public class BpiDecoder {
     private int transparentColor;
     private int[] palette;
     private int bitsPerPixel;
+    private boolean compressedRasters = false;
+
+    /**
+     * Sets whether the rasters read from the underlying stream start with
+     * their compression method, as those of BPI containers whose flags
+     * include compressed rasters.
+     * Only run-length encoded rasters can be decoded: reading a
+     * predictively coded raster fails.
+     *
+     * @param value <CODE>true</CODE> if rasters are compressed.
+     */
+    public void setCompressedRasters (boolean value) {
+	compressedRasters = value;
+    }
 
     /**
      * Reads a BPI color model from the underlying stream.
@@ -231,6 +250,9 @@ public class BpiDecoder {
 
     private int[] readPixels (int width, int height) throws IOException {
 	int length = width * height;
+	if (compressedRasters) {
+	    return readPixels(readRawPixels(length));
+	}
 	int[] pixels = new int[length];
 
 	if (palette != null) {
@@ -247,6 +269,10 @@ public class BpiDecoder {
     }
 
     private void drawPixels (Graphics g, int width, int height) throws IOException {
+	if (compressedRasters) {
+	    drawPixels(readRawPixels(width * height), g, width, height);
+	    return;
+	}
 	if (palette != null) {
 	    for (int y = 0; y < height; y++) {
 		for (int x = 0; x < width; x++) {
@@ -304,13 +330,55 @@ public class BpiDecoder {
 	int width = readDimension();
 	int height = readDimension();
 
-	int length = width * height;
+	return new BpiRaster(width, height, bitsPerPixel, readRawPixels(width * height));
+    }
+
+    /**
+     * Reads the raw pixels of a raster, decompressing them if needed.
+     */
+    private int[] readRawPixels (int length) throws IOException {
+	int compression = COMPRESSION_NONE;
+	if (compressedRasters) {
+	    compression = readBits(RASTER_COMPRESSION_SIZE);
+	}
 	int[] pixels = new int[length];
-	for (int i = 0; i < length; i++) {
-	    pixels[i] = readBits(bitsPerPixel);
+	if (compression == COMPRESSION_NONE) {
+	    for (int i = 0; i < length; i++) {
+		pixels[i] = readBits(bitsPerPixel);
+	    }
+	} else if (compression == COMPRESSION_RLE) {
+	    int i = 0;
+	    while (i < length) {
+		boolean repeat = readBit();
+		int end = i + readBits(RUN_LENGTH_SIZE) + MIN_RUN_LENGTH;
+		if (end > length) {
+/*#DefaultConfiguration#*///<editor-fold>
+		    throw new IOException("Run goes past the end of the raster.");
+/*$DefaultConfiguration$*///</editor-fold>
+/*#!DefaultConfiguration#*///<editor-fold>
+//--		    throw new IOException();
+/*$!DefaultConfiguration$*///</editor-fold>
+		}
+		if (repeat) {
+		    int pixel = readBits(bitsPerPixel);
+		    while (i < end) {
+			pixels[i++] = pixel;
+		    }
+		} else {
+		    while (i < end) {
+			pixels[i++] = readBits(bitsPerPixel);
+		    }
+		}
+	    }
+	} else {
+/*#DefaultConfiguration#*///<editor-fold>
+	    throw new IOException("Unsupported raster compression: " + compression);
+/*$DefaultConfiguration$*///</editor-fold>
+/*#!DefaultConfiguration#*///<editor-fold>
+//--	    throw new IOException();
+/*$!DefaultConfiguration$*///</editor-fold>
 	}
-
-	return new BpiRaster(width, height, bitsPerPixel, pixels);
+	return pixels;
     }
 
     /**